@@ -1,25 +1,30 @@
 package org.example
 
-import MiniKotlinLexer
 import MiniKotlinParser
 import org.antlr.v4.runtime.CharStreams
-import org.antlr.v4.runtime.CommonTokenStream
+import org.example.compiler.BatchCompiler
 import org.example.compiler.CompilationResult
+import org.example.compiler.CompileDaemon
+import org.example.compiler.CompileDaemonClient
 import org.example.compiler.ExecutionResult
 import org.example.compiler.JavaRuntimeCompiler
+import org.example.compiler.MiniKotlinFrontend
+import org.example.compiler.MiniKotlinParsing
+import org.example.compiler.StackModeBenchmark
+import compiler.MiniKotlinBackend
 import compiler.MiniKotlinCompiler
+import compiler.MiniKotlinStackMode
 import java.io.File
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import kotlin.system.exitProcess
 
-fun parseFile(path: String): MiniKotlinParser.ProgramContext {
-    val input = CharStreams.fromPath(Paths.get(path))
-    val lexer = MiniKotlinLexer(input)
-    val tokens = CommonTokenStream(lexer)
-    val parser = MiniKotlinParser(tokens)
-    return parser.program()
-}
+fun parseFile(path: String): MiniKotlinParser.ProgramContext =
+    MiniKotlinParsing.parse(CharStreams.fromPath(Paths.get(path)))
 
 fun resolveStdlibPath(): Path? {
     // 1. Check system property override
@@ -52,22 +57,132 @@ fun resolveStdlibPath(): Path? {
     return null
 }
 
-fun compileAndRunJava(path: String, args: Array<String> = emptyArray()): Pair<CompilationResult, ExecutionResult?> {
+fun compileAndRunJava(javaCode: String, args: Array<String> = emptyArray()): Pair<CompilationResult, ExecutionResult?> {
     val compiler = JavaRuntimeCompiler()
-    val sourceFile = Paths.get(path)
     val stdlibPath = resolveStdlibPath()
 
-    return compiler.compileAndExecute(sourceFile, stdlibPath, args)
+    return compiler.compileAndExecute(javaCode, stdlibPath, args)
 }
 
-fun main(args: Array<String>) {
+/**
+ * `--daemon <socket>` starts a [CompileDaemon], and `--client <socket> <command> [file.mini]` sends it a request.
+ * `--batch <file.mini>...` compiles all given files together and reports the errors of each.
+ * `--conformance [file.mini...]` checks that both frontends build the same AST, by default for all samples.
+ * `--emit <file.mini> <File.java>` streams the generated code of a program of any size into a Java file, and
+ * `--emit <file.mini> <File.class>` writes the class file generated without javac.
+ * `--benchmark <file.mini>...` compares the throughput of the given programs in each [MiniKotlinStackMode].
+ * Otherwise the given file is compiled and run in this process.
+ *
+ * Leading `--frontend antlr|handwritten` selects the [MiniKotlinFrontend] used by all modes,
+ * `--stack java|heap` the [MiniKotlinStackMode] and `--backend lambdas|state_machines` the [MiniKotlinBackend] of
+ * `--emit` and of running a file. Leading `--bytecode` runs a file from the class file generated without javac.
+ */
+fun main(arguments: Array<String>) {
+    var frontend = MiniKotlinFrontend.ANTLR
+    var stackMode = MiniKotlinStackMode.JAVA
+    var backend = MiniKotlinBackend.LAMBDAS
+    var bytecode = false
+    var args = arguments.toList()
+    while (true) {
+        when (args.firstOrNull()) {
+            "--bytecode" -> {
+                bytecode = true
+                args = args.drop(1)
+                continue
+            }
+
+            "--frontend" -> frontend = MiniKotlinFrontend.valueOf(args[1].uppercase())
+            "--stack" -> stackMode = MiniKotlinStackMode.valueOf(args[1].uppercase())
+            "--backend" -> backend = MiniKotlinBackend.valueOf(args[1].uppercase())
+            else -> break
+        }
+        args = args.drop(2)
+    }
+
+    when (args.firstOrNull()) {
+        "--daemon" -> return CompileDaemon(Paths.get(args[1]), resolveStdlibPath(), frontend = frontend).serve {
+            println("Listening on ${args[1]}")
+        }
+        "--client" -> {
+            val source = args.getOrNull(3)?.let { Files.readString(Paths.get(it)) } ?: ""
+            val response = CompileDaemonClient(Paths.get(args[1])).send(args[2], source)
+            print(response.output)
+            if (!response.ok) exitProcess(1)
+            return
+        }
+
+        "--batch" -> {
+            val results = BatchCompiler(resolveStdlibPath(), frontend = frontend).compile(args.drop(1).map { Paths.get(it) })
+            results.forEach { (input, result) ->
+                when (result) {
+                    is CompilationResult.Success -> println("$input: OK")
+                    is CompilationResult.Failure -> result.errors.forEach {
+                        System.err.println("$input: ${it.line}:${it.column}: ${it.message}")
+                    }
+                }
+            }
+            if (results.values.any { it is CompilationResult.Failure }) exitProcess(1)
+            return
+        }
+
+        "--emit" -> {
+            val input = Paths.get(args[1])
+            val output = Paths.get(args[2])
+            val ast = if (frontend == MiniKotlinFrontend.ANTLR) MiniKotlinParsing.parseAst(input) else frontend.parse(Files.readString(input))
+            if (output.toString().endsWith(".class")) {
+                Files.write(output, MiniKotlinCompiler().compileToClass(ast, output.fileName.toString().removeSuffix(".class")))
+                return
+            }
+            FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+                Channels.newWriter(channel, Charsets.UTF_8).use { writer ->
+                    MiniKotlinCompiler(stackMode, backend).compile(ast, output.fileName.toString().removeSuffix(".java"), writer)
+                }
+            }
+            return
+        }
+
+        "--benchmark" -> {
+            val measurements = StackModeBenchmark(resolveStdlibPath(), frontend).measure(args.drop(1).map { Paths.get(it) })
+            measurements.forEach { (input, mode, runsPerSecond, error) ->
+                println("$input ${mode.name.lowercase()}: ${runsPerSecond?.let { "%.1f runs/s".format(it) } ?: error}")
+            }
+            return
+        }
+
+        "--conformance" -> {
+            val inputs = args.drop(1).map { Paths.get(it) }.ifEmpty {
+                Files.list(Paths.get("samples")).use { samples ->
+                    samples.filter { it.toString().endsWith(".mini") }.sorted().toList()
+                }
+            }
+            val mismatches = inputs.mapNotNull { input ->
+                MiniKotlinFrontend.checkConformance(Files.readString(input))?.let { input to it }
+            }
+            mismatches.forEach { (input, difference) -> System.err.println("$input: $difference") }
+            println("${inputs.size - mismatches.size} of ${inputs.size} inputs conform")
+            if (mismatches.isNotEmpty()) exitProcess(1)
+            return
+        }
+    }
+
     val inputPath = args.firstOrNull() ?: "samples/example.mini"
 
     // 1. Parse the .mini file
-    val program = parseFile(inputPath)
+    val program = frontend.parse(Files.readString(Paths.get(inputPath)))
+
+    // 2. Compile to a class file and execute it, if javac is not wanted
+    val compiler = MiniKotlinCompiler(stackMode, backend)
+    if (bytecode) {
+        val javaCompiler = JavaRuntimeCompiler()
+        val classFile = javaCompiler.load("MiniProgram", mapOf("MiniProgram" to compiler.compileToClass(program)), resolveStdlibPath())
+        when (val executionResult = javaCompiler.execute(classFile)) {
+            is ExecutionResult.Success -> print(executionResult.stdout)
+            is ExecutionResult.Failure -> System.err.println("Execution error: ${executionResult.error}")
+        }
+        return
+    }
 
-    // 2. Compile to Java
-    val compiler = MiniKotlinCompiler()
+    // Otherwise compile to Java
     val javaCode = compiler.compile(program)
 
     // Debug: print generated Java code
@@ -75,15 +190,10 @@ fun main(args: Array<String>) {
     println(javaCode)
     println("=== End Generated Code ===")
 
-    // 3. Write to temp file
-    val tempDir = Files.createTempDirectory("minikotlin")
-    val javaFile = tempDir.resolve("MiniProgram.java")
-    Files.writeString(javaFile, javaCode)
-
-    // 4. Compile and execute
-    val (compilationResult, executionResult) = compileAndRunJava(javaFile.toString())
+    // 3. Compile and execute in memory
+    val (compilationResult, executionResult) = compileAndRunJava(javaCode)
 
-    // 5. Print results
+    // 4. Print results
     when (compilationResult) {
         is CompilationResult.Success -> {
             when (executionResult) {
@@ -6,7 +6,11 @@ class MiniKotlinAst {
     data class Program(val functionDeclaration: List<FunctionDeclaration>) : AstNode
 
     data class FunctionDeclaration(
-        val name: String, val parameterList: List<Parameter>, val returnType: MiniKotlinType, val block: Block
+        val name: String,
+        val parameterList: List<Parameter>,
+        val returnType: MiniKotlinType,
+        val block: Block,
+        var isDirect: Boolean = false
     ) : AstNode
 
     data class Parameter(val name: String, val type: MiniKotlinType) : AstNode
@@ -15,13 +19,45 @@ class MiniKotlinAst {
 
     sealed interface Statement : AstNode
 
+    /**
+     * Only expressions whose type depends on the analysis store [resolvedType]. Literals and `!` know their type,
+     * and identifiers take it from their symbol, which keeps the nodes of large programs small.
+     */
     sealed class Expression : Statement {
-        var resolvedType: MiniKotlinType? = null
+        abstract val resolvedType: MiniKotlinType?
+
+        /**
+         * The subexpressions evaluated before this expression, in evaluation order.
+         */
+        val operands: List<Expression>
+            get() = when (this) {
+                is BinaryExpression -> listOf(left, right)
+                is FunctionCall -> argumentList
+                is Not -> listOf(value)
+                is BooleanLiteral, is Identifier, is IntegerLiteral, is StringLiteral -> emptyList()
+            }
+
+        /**
+         * This expression and all of its subexpressions, each after its [operands]. The traversal uses an explicit
+         * stack, so that passes iterating over it work for expressions nested arbitrarily deep.
+         */
+        fun postOrder(): List<Expression> {
+            val order = mutableListOf<Expression>()
+            val stack = mutableListOf(this)
+            while (stack.isNotEmpty()) {
+                val expression = stack.removeLast()
+                order += expression
+                stack += expression.operands
+            }
+            return order.asReversed()
+        }
     }
 
-    data class VariableDeclaration(
-        val name: String, val type: MiniKotlinType, val value: Expression, var javaName: String = ""
-    ) : Statement
+    data class VariableDeclaration(val name: String, val type: MiniKotlinType, val value: Expression) : Statement {
+        var symbol: MiniKotlinSemanticAnalyser.VariableSymbol? = null
+
+        val javaName get() = symbol!!.javaName
+    }
 
     data class VariableAssignment(
         val identifier: Identifier, val value: Expression
@@ -29,24 +65,42 @@ class MiniKotlinAst {
 
     data class If(val condition: Expression, val trueBlock: Block, val falseBlock: Block?) : Statement
 
-    data class While(val condition: Expression, val block: Block) : Statement
+    data class While(val condition: Expression, val block: Block, var isDirect: Boolean = false) : Statement
 
     data class Return(val value: Expression?) : Statement
 
-    data class FunctionCall(var name: String, val argumentList: List<Expression>) : Expression()
+    data class FunctionCall(var name: String, val argumentList: List<Expression>, var isDirect: Boolean = false) :
+        Expression() {
+        override var resolvedType: MiniKotlinType? = null
+    }
 
-    data class Not(val value: Expression) : Expression()
+    data class Not(val value: Expression) : Expression() {
+        override val resolvedType get() = MiniKotlinType.Boolean
+    }
 
     data class BinaryExpression(
-        val left: Expression, val operation: MiniKotlinBinaryOperation, val right: Expression
-    ) : Expression()
+        val left: Expression, val operation: MiniKotlinBinaryOperation, val right: Expression, var isDirect: Boolean = false
+    ) : Expression() {
+        override var resolvedType: MiniKotlinType? = null
+    }
 
-    data class IntegerLiteral(val value: Int) : Expression()
+    data class IntegerLiteral(val value: Int) : Expression() {
+        override val resolvedType get() = MiniKotlinType.Int
+    }
 
-    data class StringLiteral(val value: String) : Expression()
+    data class StringLiteral(val value: String) : Expression() {
+        override val resolvedType get() = MiniKotlinType.String
+    }
 
-    data class BooleanLiteral(val value: Boolean) : Expression()
+    data class BooleanLiteral(val value: Boolean) : Expression() {
+        override val resolvedType get() = MiniKotlinType.Boolean
+    }
 
-    data class Identifier(val name: String, var javaName: String = "", var isParam: Boolean = false) :
-        Expression()
+    data class Identifier(val name: String) : Expression() {
+        var symbol: MiniKotlinSemanticAnalyser.VariableSymbol? = null
+
+        override val resolvedType get() = symbol?.type
+        val javaName get() = symbol!!.javaName
+        val isParam get() = symbol!!.isParam
+    }
 }
\ No newline at end of file
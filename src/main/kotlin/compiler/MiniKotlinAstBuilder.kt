@@ -0,0 +1,140 @@
+package compiler
+
+import MiniKotlinBaseListener
+import MiniKotlinParser
+import org.antlr.v4.runtime.ParserRuleContext
+
+/**
+ * Builds the AST while ANTLR parses, as a parse listener of a parser that does not build a parse tree.
+ * The exit of every rule pops the AST nodes of its children from [values] and pushes its own node, so each parse tree
+ * context can be collected as soon as its rule is exited, and the whole tree never exists at once.
+ *
+ * Rules other than `expression` are entered and exited in pairs, and [marks] records where the values of their
+ * children start. The left-recursive `expression` rule is not, so its exits pop a fixed number of operands instead.
+ */
+class MiniKotlinAstBuilder : MiniKotlinBaseListener() {
+    private class Arguments(val expressions: List<MiniKotlinAst.Expression>)
+
+    private val values = ArrayList<Any>()
+    private val names = MiniKotlinNames()
+    private val marks = ArrayDeque<Int>()
+
+    val program get() = values.single() as MiniKotlinAst.Program
+
+    override fun enterEveryRule(ctx: ParserRuleContext) {
+        if (ctx !is MiniKotlinParser.ExpressionContext) marks.addLast(values.size)
+    }
+
+    override fun exitEveryRule(ctx: ParserRuleContext) {
+        if (ctx !is MiniKotlinParser.ExpressionContext) marks.removeLast()
+    }
+
+    private fun push(value: Any) {
+        values.add(value)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T> pop() = values.removeLast() as T
+
+    /**
+     * Removes and returns the values pushed since the current rule was entered.
+     */
+    private fun popChildren(): List<Any> {
+        val children = values.subList(marks.last(), values.size)
+        return children.toList().also { children.clear() }
+    }
+
+    override fun exitProgram(ctx: MiniKotlinParser.ProgramContext) =
+        push(MiniKotlinAst.Program(popChildren().map { it as MiniKotlinAst.FunctionDeclaration }))
+
+    override fun exitFunctionDeclaration(ctx: MiniKotlinParser.FunctionDeclarationContext) {
+        val block = pop<MiniKotlinAst.Block>()
+        val returnType = pop<MiniKotlinType>()
+        val parameters = popChildren().map { it as MiniKotlinAst.Parameter }
+        push(MiniKotlinAst.FunctionDeclaration(names.intern(ctx.IDENTIFIER().text), parameters, returnType, block))
+    }
+
+    override fun exitParameter(ctx: MiniKotlinParser.ParameterContext) =
+        push(MiniKotlinAst.Parameter(names.intern(ctx.IDENTIFIER().text), pop()))
+
+    override fun exitType(ctx: MiniKotlinParser.TypeContext) = push(
+        when (ctx.start.type) {
+            MiniKotlinParser.INT_TYPE -> MiniKotlinType.Int
+            MiniKotlinParser.BOOLEAN_TYPE -> MiniKotlinType.Boolean
+            MiniKotlinParser.STRING_TYPE -> MiniKotlinType.String
+            MiniKotlinParser.UNIT_TYPE -> MiniKotlinType.Unit
+            else -> throw IllegalArgumentException()
+        }
+    )
+
+    override fun exitBlock(ctx: MiniKotlinParser.BlockContext) =
+        push(MiniKotlinAst.Block(popChildren().map { it as MiniKotlinAst.Statement }))
+
+    override fun exitVariableDeclaration(ctx: MiniKotlinParser.VariableDeclarationContext) {
+        val value = pop<MiniKotlinAst.Expression>()
+        push(MiniKotlinAst.VariableDeclaration(names.intern(ctx.IDENTIFIER().text), pop(), value))
+    }
+
+    override fun exitVariableAssignment(ctx: MiniKotlinParser.VariableAssignmentContext) =
+        push(MiniKotlinAst.VariableAssignment(MiniKotlinAst.Identifier(names.intern(ctx.IDENTIFIER().text)), pop()))
+
+    override fun exitIfStatement(ctx: MiniKotlinParser.IfStatementContext) {
+        val falseBlock = if (ctx.ELSE() != null) pop<MiniKotlinAst.Block>() else null
+        val trueBlock = pop<MiniKotlinAst.Block>()
+        push(MiniKotlinAst.If(pop(), trueBlock, falseBlock))
+    }
+
+    override fun exitWhileStatement(ctx: MiniKotlinParser.WhileStatementContext) {
+        val block = pop<MiniKotlinAst.Block>()
+        push(MiniKotlinAst.While(pop(), block))
+    }
+
+    override fun exitReturnStatement(ctx: MiniKotlinParser.ReturnStatementContext) =
+        push(MiniKotlinAst.Return(popChildren().singleOrNull() as MiniKotlinAst.Expression?))
+
+    override fun exitArgumentList(ctx: MiniKotlinParser.ArgumentListContext) =
+        push(Arguments(popChildren().map { it as MiniKotlinAst.Expression }))
+
+    /**
+     * The argument list, if any, was exited right before the call, so its [Arguments] are on top of [values].
+     */
+    override fun exitFunctionCallExpr(ctx: MiniKotlinParser.FunctionCallExprContext) {
+        val arguments = if (values.lastOrNull() is Arguments) pop<Arguments>().expressions else emptyList()
+        push(MiniKotlinAst.FunctionCall(names.intern(ctx.IDENTIFIER().text), arguments))
+    }
+
+    override fun exitNotExpr(ctx: MiniKotlinParser.NotExprContext) = push(MiniKotlinAst.Not(pop()))
+
+    override fun exitMulDivExpr(ctx: MiniKotlinParser.MulDivExprContext) = pushBinaryExpression(ctx)
+
+    override fun exitAddSubExpr(ctx: MiniKotlinParser.AddSubExprContext) = pushBinaryExpression(ctx)
+
+    override fun exitComparisonExpr(ctx: MiniKotlinParser.ComparisonExprContext) = pushBinaryExpression(ctx)
+
+    override fun exitEqualityExpr(ctx: MiniKotlinParser.EqualityExprContext) = pushBinaryExpression(ctx)
+
+    override fun exitAndExpr(ctx: MiniKotlinParser.AndExprContext) = pushBinaryExpression(ctx)
+
+    override fun exitOrExpr(ctx: MiniKotlinParser.OrExprContext) = pushBinaryExpression(ctx)
+
+    /**
+     * Without a parse tree, the only child of a binary expression context is its operator token.
+     */
+    private fun pushBinaryExpression(ctx: MiniKotlinParser.ExpressionContext) {
+        val right = pop<MiniKotlinAst.Expression>()
+        val left = pop<MiniKotlinAst.Expression>()
+        push(MiniKotlinAst.BinaryExpression(left, MiniKotlinBinaryOperation.fromString(ctx.getChild(0).text), right))
+    }
+
+    override fun exitIntLiteral(ctx: MiniKotlinParser.IntLiteralContext) =
+        push(MiniKotlinAst.IntegerLiteral(ctx.text.toInt()))
+
+    override fun exitStringLiteral(ctx: MiniKotlinParser.StringLiteralContext) =
+        push(MiniKotlinAst.StringLiteral(ctx.text.trim('"')))
+
+    override fun exitBoolLiteral(ctx: MiniKotlinParser.BoolLiteralContext) =
+        push(MiniKotlinAst.BooleanLiteral(ctx.text.toBooleanStrict()))
+
+    override fun exitIdentifierExpr(ctx: MiniKotlinParser.IdentifierExprContext) =
+        push(MiniKotlinAst.Identifier(names.intern(ctx.text)))
+}
@@ -0,0 +1,18 @@
+package compiler
+
+/**
+ * How functions that need continuations are compiled.
+ */
+enum class MiniKotlinBackend {
+    /**
+     * The code following each call is a lambda passed to it as the continuation.
+     */
+    LAMBDAS,
+
+    /**
+     * Each function is a class whose instances are the frames of its calls, like Kotlin compiles suspend functions.
+     * The body is a `switch` over the step to resume at, variables are fields of the frame, and the frame itself is
+     * the continuation of every call it makes.
+     */
+    STATE_MACHINES
+}
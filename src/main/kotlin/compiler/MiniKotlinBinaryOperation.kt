@@ -22,6 +22,20 @@ enum class MiniKotlinBinaryOperation {
         }
     }
 
+    /**
+     * Binding strength, in the order of the `expression` alternatives in `MiniKotlin.g4`. Java binds these operators
+     * the same way.
+     */
+    val precedence
+        get() = when (this) {
+            MULT, DIV, MOD -> 6
+            PLUS, MINUS -> 5
+            LT, GT, LE, GE -> 4
+            EQ, NEQ -> 3
+            AND -> 2
+            OR -> 1
+        }
+
     override fun toString(): String = when (this) {
         MULT -> "*"
         DIV -> "/"
@@ -0,0 +1,371 @@
+package compiler
+
+import compiler.MiniKotlinClassWriter.Companion.GOTO
+import compiler.MiniKotlinClassWriter.Companion.IADD
+import compiler.MiniKotlinClassWriter.Companion.IDIV
+import compiler.MiniKotlinClassWriter.Companion.IFEQ
+import compiler.MiniKotlinClassWriter.Companion.IFNE
+import compiler.MiniKotlinClassWriter.Companion.IF_ICMPEQ
+import compiler.MiniKotlinClassWriter.Companion.IF_ICMPGE
+import compiler.MiniKotlinClassWriter.Companion.IF_ICMPGT
+import compiler.MiniKotlinClassWriter.Companion.IF_ICMPLE
+import compiler.MiniKotlinClassWriter.Companion.IF_ICMPLT
+import compiler.MiniKotlinClassWriter.Companion.IF_ICMPNE
+import compiler.MiniKotlinClassWriter.Companion.IMUL
+import compiler.MiniKotlinClassWriter.Companion.IREM
+import compiler.MiniKotlinClassWriter.Companion.ISUB
+import compiler.MiniKotlinClassWriter.Companion.IXOR
+import java.util.IdentityHashMap
+
+/**
+ * Generates the class file of a program without going through Java source. Every function becomes a static method
+ * returning its result, like the direct-style functions of [MiniKotlinCodegen], so the JVM stack holds the frames of
+ * calls and no continuations are needed. A `Unit` result is `void`, and `null` where it is used as a value.
+ *
+ * Expressions are generated from a stack of the expressions and instructions still to be written, so that deep
+ * expressions do not recurse, like [MiniKotlinCodegen] writes direct expressions.
+ */
+class MiniKotlinBytecodeGenerator(private val className: String = "MiniProgram") {
+    private lateinit var functions: Map<String, MiniKotlinAst.FunctionDeclaration>
+    private lateinit var currentFunction: MiniKotlinAst.FunctionDeclaration
+    private lateinit var method: MiniKotlinClassWriter.MethodWriter
+    private var isMain = false
+    private var parameterSlots = emptyMap<String, Int>()
+
+    /**
+     * The slots of the local variables of the current function, by symbol. Symbols are compared by identity, like the
+     * expressions of [MiniKotlinCodegen], because shadowing variables may have equal symbols.
+     */
+    private val slots = IdentityHashMap<MiniKotlinSemanticAnalyser.VariableSymbol, Int>()
+
+    /**
+     * The start of the body of the current function, where self tail calls jump to after rebinding the parameters.
+     */
+    private var tailLoop: MiniKotlinClassWriter.Label? = null
+
+    fun generate(program: MiniKotlinAst.Program): ByteArray {
+        functions = program.functionDeclaration.associateBy { it.name }
+        val writer = MiniKotlinClassWriter(className)
+        program.functionDeclaration.forEach { generateFunctionDeclaration(writer, it) }
+        return writer.toByteArray()
+    }
+
+    private fun generateFunctionDeclaration(writer: MiniKotlinClassWriter, functionDeclaration: MiniKotlinAst.FunctionDeclaration) =
+        with(functionDeclaration) {
+            currentFunction = functionDeclaration
+            isMain = name == "main"
+            val descriptor = if (isMain) "([Ljava/lang/String;)V" else descriptor(functionDeclaration)
+            method = writer.method(name, descriptor, MiniKotlinClassWriter.parseDescriptor(descriptor).first)
+            parameterSlots = parameterList.withIndex().associate { (index, parameter) -> parameter.name to index }
+            slots.clear()
+
+            tailLoop = if (!isMain && hasSelfTailCall(block)) MiniKotlinClassWriter.Label() else null
+            tailLoop?.let(method::place)
+            generateStatements(block)
+            when {
+                !method.isReachable -> Unit
+                returnType == MiniKotlinType.Unit -> method.returnValue(null)
+                else -> method.throwNull()
+            }
+        }
+
+    /**
+     * Statements following one that always returns are dropped, because they cannot be reached.
+     */
+    private fun generateStatements(block: MiniKotlinAst.Block) {
+        val scope = method.locals.toList()
+        val returnIndex = block.statements.indexOfFirst { MiniKotlinSemanticAnalyser.alwaysReturns(it) }
+        val statements = if (returnIndex == -1) block.statements else block.statements.take(returnIndex + 1)
+        statements.forEach(::generateStatement)
+        method.restoreLocals(scope)
+    }
+
+    private fun generateStatement(statement: MiniKotlinAst.Statement): Unit = when (statement) {
+        is MiniKotlinAst.VariableDeclaration -> with(statement) {
+            val slot = method.locals.size
+            generateExpression(value)
+            method.store(slot, MiniKotlinClassWriter.fieldType(type.descriptor()))
+            slots[symbol!!] = slot
+        }
+
+        is MiniKotlinAst.VariableAssignment -> with(statement) {
+            val slot = slotOf(identifier)
+            generateExpression(value)
+            method.store(slot, method.locals[slot])
+        }
+
+        is MiniKotlinAst.If -> generateIf(statement)
+        is MiniKotlinAst.While -> generateWhile(statement)
+        is MiniKotlinAst.Return -> generateReturn(statement)
+        is MiniKotlinAst.Expression -> generateExpression(statement, discard = true)
+    }
+
+    private fun generateIf(ifStatement: MiniKotlinAst.If) = with(ifStatement) {
+        val falseLabel = MiniKotlinClassWriter.Label()
+        val end = MiniKotlinClassWriter.Label()
+        generateExpression(condition)
+        method.jump(IFEQ, falseLabel)
+        generateStatements(trueBlock)
+        if (falseBlock == null) {
+            method.place(falseLabel)
+        } else {
+            if (method.isReachable) method.jump(GOTO, end)
+            method.place(falseLabel)
+            generateStatements(falseBlock)
+        }
+        method.place(end)
+    }
+
+    private fun generateWhile(whileStatement: MiniKotlinAst.While) = with(whileStatement) {
+        val start = MiniKotlinClassWriter.Label()
+        val end = MiniKotlinClassWriter.Label()
+        method.place(start)
+        generateExpression(condition)
+        method.jump(IFEQ, end)
+        generateStatements(block)
+        if (method.isReachable) method.jump(GOTO, start)
+        method.place(end)
+    }
+
+    /**
+     * `main` returns without evaluating the value, like the Java backends. A self tail call evaluates all arguments
+     * before storing them into the parameters and jumping to [tailLoop].
+     */
+    private fun generateReturn(returnStatement: MiniKotlinAst.Return) = with(returnStatement) {
+        val tailCall = (value as? MiniKotlinAst.FunctionCall)?.takeIf { it.name == currentFunction.name }
+        when {
+            isMain -> method.returnValue(null)
+            tailCall != null -> {
+                tailCall.argumentList.forEach(::generateExpression)
+                currentFunction.parameterList.indices.reversed().forEach { method.store(it, method.locals[it]) }
+                method.jump(GOTO, tailLoop!!)
+            }
+
+            currentFunction.returnType == MiniKotlinType.Unit -> {
+                value?.let { generateExpression(it, discard = true) }
+                method.returnValue(null)
+            }
+
+            else -> {
+                generateExpression(value!!)
+                method.returnValue(MiniKotlinClassWriter.fieldType(currentFunction.returnType.descriptor()))
+            }
+        }
+    }
+
+    private fun hasSelfTailCall(block: MiniKotlinAst.Block): Boolean = block.statements.any { statement ->
+        when (statement) {
+            is MiniKotlinAst.Return -> (statement.value as? MiniKotlinAst.FunctionCall)?.name == currentFunction.name
+            is MiniKotlinAst.If -> hasSelfTailCall(statement.trueBlock) || statement.falseBlock?.let(::hasSelfTailCall) ?: false
+            is MiniKotlinAst.While -> hasSelfTailCall(statement.block)
+            is MiniKotlinAst.Expression, is MiniKotlinAst.VariableAssignment, is MiniKotlinAst.VariableDeclaration -> false
+        }
+    }
+
+    /**
+     * Pushes the value of [expression], or leaves the stack as it was when the value is [discard]ed. The stack holds
+     * expressions still to be generated and instructions to write once the operands before them are on the JVM stack.
+     */
+    private fun generateExpression(expression: MiniKotlinAst.Expression, discard: Boolean = false) {
+        val stack = mutableListOf<Any>(expression)
+        while (stack.isNotEmpty()) {
+            when (val next = stack.removeLast()) {
+                is Function0<*> -> next()
+                is MiniKotlinAst.BinaryExpression -> generateBinaryExpression(next, stack)
+                is MiniKotlinAst.BooleanLiteral -> method.pushInt(if (next.value) 1 else 0)
+                is MiniKotlinAst.FunctionCall -> {
+                    val isStatement = discard && next === expression
+                    stack += { generateCall(next, isStatement) }
+                    next.argumentList.asReversed().forEach { argument ->
+                        if (next.name == PRINTLN) stack += { generateBoxing(argument.resolvedType!!) }
+                        stack += argument
+                    }
+                }
+
+                is MiniKotlinAst.Identifier -> method.load(slotOf(next))
+                is MiniKotlinAst.IntegerLiteral -> method.pushInt(next.value)
+                is MiniKotlinAst.Not -> {
+                    stack += {
+                        method.pushInt(1)
+                        method.arithmetic(IXOR)
+                    }
+                    stack += next.value
+                }
+
+                is MiniKotlinAst.StringLiteral -> method.pushString(unescape(next.value))
+            }
+        }
+        if (discard && !(expression is MiniKotlinAst.FunctionCall && expression.resolvedType == MiniKotlinType.Unit)) {
+            method.pop()
+        }
+    }
+
+    private fun generateBinaryExpression(binaryExpression: MiniKotlinAst.BinaryExpression, stack: MutableList<Any>) =
+        with(binaryExpression) {
+            when (operation) {
+                MiniKotlinBinaryOperation.AND, MiniKotlinBinaryOperation.OR -> {
+                    val shortCircuit = MiniKotlinClassWriter.Label()
+                    val end = MiniKotlinClassWriter.Label()
+                    val isAnd = operation == MiniKotlinBinaryOperation.AND
+                    val generateEnd = {
+                        method.jump(GOTO, end)
+                        method.place(shortCircuit)
+                        method.pushInt(if (isAnd) 0 else 1)
+                        method.place(end)
+                    }
+                    val generateJump = { method.jump(if (isAnd) IFEQ else IFNE, shortCircuit) }
+                    stack.addAll(listOf(generateEnd, right, generateJump, left))
+                }
+
+                else -> stack.addAll(listOf({ generateBinaryOperation(binaryExpression) }, right, left))
+            }
+        }
+
+    /**
+     * Writes the instructions of [binaryExpression] once both operands are on the stack. Strings are concatenated
+     * with `String.concat` after converting the right operand like Java string concatenation does.
+     */
+    private fun generateBinaryOperation(binaryExpression: MiniKotlinAst.BinaryExpression) = with(binaryExpression) {
+        when (operation) {
+            MiniKotlinBinaryOperation.PLUS if resolvedType == MiniKotlinType.String -> {
+                when (right.resolvedType) {
+                    MiniKotlinType.String -> Unit
+                    MiniKotlinType.Int -> method.invokeStatic("java/lang/String", "valueOf", "(I)Ljava/lang/String;")
+                    MiniKotlinType.Boolean -> method.invokeStatic("java/lang/String", "valueOf", "(Z)Ljava/lang/String;")
+                    else -> method.invokeStatic("java/lang/String", "valueOf", "(Ljava/lang/Object;)Ljava/lang/String;")
+                }
+                method.invokeVirtual("java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;")
+            }
+
+            MiniKotlinBinaryOperation.PLUS -> method.arithmetic(IADD)
+            MiniKotlinBinaryOperation.MINUS -> method.arithmetic(ISUB)
+            MiniKotlinBinaryOperation.MULT -> method.arithmetic(IMUL)
+            MiniKotlinBinaryOperation.DIV -> method.arithmetic(IDIV)
+            MiniKotlinBinaryOperation.MOD -> method.arithmetic(IREM)
+            MiniKotlinBinaryOperation.EQ if !left.resolvedType!!.isPrimitive() ->
+                method.invokeStatic("java/util/Objects", "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z")
+
+            MiniKotlinBinaryOperation.NEQ if !left.resolvedType!!.isPrimitive() -> {
+                method.invokeStatic("java/util/Objects", "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z")
+                method.pushInt(1)
+                method.arithmetic(IXOR)
+            }
+
+            MiniKotlinBinaryOperation.EQ -> generateComparison(IF_ICMPNE)
+            MiniKotlinBinaryOperation.NEQ -> generateComparison(IF_ICMPEQ)
+            MiniKotlinBinaryOperation.LT -> generateComparison(IF_ICMPGE)
+            MiniKotlinBinaryOperation.GT -> generateComparison(IF_ICMPLE)
+            MiniKotlinBinaryOperation.LE -> generateComparison(IF_ICMPGT)
+            MiniKotlinBinaryOperation.GE -> generateComparison(IF_ICMPLT)
+            MiniKotlinBinaryOperation.AND, MiniKotlinBinaryOperation.OR -> error("Unexpected short circuit operation")
+        }
+    }
+
+    /**
+     * Pushes whether two Ints compare as required, by jumping with the [negatedJump] when they do not.
+     */
+    private fun generateComparison(negatedJump: Int) {
+        val isFalse = MiniKotlinClassWriter.Label()
+        val end = MiniKotlinClassWriter.Label()
+        method.jump(negatedJump, isFalse)
+        method.pushInt(1)
+        method.jump(GOTO, end)
+        method.place(isFalse)
+        method.pushInt(0)
+        method.place(end)
+    }
+
+    /**
+     * Calls [functionCall] once its arguments are on the stack. A `Unit` result is `null` unless the call is a
+     * statement. Builtins are called by the name the semantic analyser resolved them to, and builtins without a
+     * counterpart here are rejected instead of being called like another function.
+     */
+    private fun generateCall(functionCall: MiniKotlinAst.FunctionCall, isStatement: Boolean) = with(functionCall) {
+        val function = functions[name]
+        when {
+            function != null -> method.invokeStatic(className, name, descriptor(function))
+            name == PRINTLN -> method.invokeStatic("Prelude", "println", "(Ljava/lang/Object;)V")
+            else -> error("Unsupported builtin function: $name")
+        }
+        if (resolvedType == MiniKotlinType.Unit && !isStatement) method.pushNull()
+    }
+
+    /**
+     * Boxes an Int or Boolean argument passed as `Any`.
+     */
+    private fun generateBoxing(type: MiniKotlinType) = when (type) {
+        MiniKotlinType.Int -> method.invokeStatic("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;")
+        MiniKotlinType.Boolean -> method.invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;")
+        MiniKotlinType.String, MiniKotlinType.Any, MiniKotlinType.Unit -> Unit
+    }
+
+    private fun slotOf(identifier: MiniKotlinAst.Identifier) = with(identifier) {
+        if (isParam) parameterSlots.getValue(name) else slots.getValue(symbol!!)
+    }
+
+    /**
+     * Interprets the escape sequences of a string literal like javac does for the Java backends, which pass the
+     * literal on as it is written.
+     */
+    private fun unescape(literal: String): String {
+        if ('\\' !in literal) return literal
+        val value = StringBuilder()
+        var index = 0
+        while (index < literal.length) {
+            val char = literal[index++]
+            if (char != '\\') {
+                value.append(char)
+                continue
+            }
+            val escape = literal.getOrNull(index++) ?: error("Invalid escape sequence in string literal \"$literal\"")
+            when (escape) {
+                'b' -> value.append('\b')
+                't' -> value.append('\t')
+                'n' -> value.append('\n')
+                'f' -> value.append('\u000C')
+                'r' -> value.append('\r')
+                's' -> value.append(' ')
+                '"', '\'', '\\' -> value.append(escape)
+                'u' -> {
+                    while (literal.getOrNull(index) == 'u') index++
+                    val code = literal.substring(index, minOf(index + 4, literal.length)).toIntOrNull(16)
+                    if (code == null || index + 4 > literal.length) error("Invalid unicode escape in string literal \"$literal\"")
+                    value.append(code.toChar())
+                    index += 4
+                }
+
+                in '0'..'7' -> {
+                    val maxLength = if (escape <= '3') 3 else 2
+                    val start = index - 1
+                    while (index < start + maxLength && literal.getOrNull(index) in '0'..'7') index++
+                    value.append(literal.substring(start, index).toInt(8).toChar())
+                }
+
+                else -> error("Invalid escape sequence in string literal \"$literal\"")
+            }
+        }
+        return value.toString()
+    }
+
+    private fun descriptor(functionDeclaration: MiniKotlinAst.FunctionDeclaration) = with(functionDeclaration) {
+        val parameters = parameterList.joinToString("") { it.type.descriptor() }
+        "($parameters)${if (returnType == MiniKotlinType.Unit) "V" else returnType.descriptor()}"
+    }
+
+    private fun MiniKotlinType.isPrimitive() = this == MiniKotlinType.Int || this == MiniKotlinType.Boolean
+
+    private fun MiniKotlinType.descriptor() = when (this) {
+        MiniKotlinType.Int -> "I"
+        MiniKotlinType.Boolean -> "Z"
+        MiniKotlinType.String -> "Ljava/lang/String;"
+        MiniKotlinType.Any -> "Ljava/lang/Object;"
+        MiniKotlinType.Unit -> "Ljava/lang/Void;"
+    }
+
+    companion object {
+        /**
+         * The name of the `println` builtin after semantic analysis.
+         */
+        private const val PRINTLN = "Prelude.println"
+    }
+}
@@ -0,0 +1,429 @@
+package compiler
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.util.TreeMap
+
+/**
+ * Writes a class file with static methods only, for [MiniKotlinBytecodeGenerator]. Constants are shared through the
+ * constant pool, and each method tracks the verification types of its locals and operand stack while its code is
+ * written, so that the `StackMapTable` the JVM verifier requires can be written without a separate analysis.
+ */
+class MiniKotlinClassWriter(private val className: String) {
+    /**
+     * The verification types of the values in locals and on the operand stack. Int and Boolean values are both
+     * [Integer] on the JVM.
+     */
+    sealed interface Type {
+        data object Top : Type
+        data object Integer : Type
+        data object Null : Type
+        data class Reference(val internalName: String) : Type
+    }
+
+    /**
+     * A position in the code of a method. The stack of the first jump to it is recorded for code that can only be
+     * reached by jumping there.
+     */
+    class Label {
+        internal var position = -1
+        internal var stack: List<Type>? = null
+    }
+
+    private class Frame(val locals: List<Type>, val stack: List<Type>)
+
+    private val constantPool = ByteArrayOutputStream()
+    private val constants = DataOutputStream(constantPool)
+    private val constantIndex = HashMap<List<Any>, Int>()
+    private var constantCount = 1
+    private val methods = mutableListOf<MethodWriter>()
+
+    fun method(name: String, descriptor: String, parameters: List<Type>) =
+        MethodWriter(name, descriptor, parameters).also { methods += it }
+
+    fun toByteArray(): ByteArray {
+        val thisClass = classConstant(className)
+        val superClass = classConstant("java/lang/Object")
+        val methodBytes = methods.map { it.toByteArray() }
+
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).run {
+            writeInt(0xCAFEBABE.toInt())
+            writeShort(0)
+            writeShort(CLASS_VERSION)
+            writeShort(constantCount)
+            constants.flush()
+            write(constantPool.toByteArray())
+            writeShort(ACC_PUBLIC or ACC_SUPER)
+            writeShort(thisClass)
+            writeShort(superClass)
+            writeShort(0)
+            writeShort(0)
+            writeShort(methodBytes.size)
+            methodBytes.forEach(::write)
+            writeShort(0)
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun constant(key: List<Any>, write: DataOutputStream.() -> Unit) = constantIndex.getOrPut(key) {
+        constants.write()
+        constantCount++
+    }
+
+    private fun utf8Constant(value: String) = constant(listOf(1, value)) { writeByte(1); writeUTF(value) }
+
+    private fun integerConstant(value: Int) = constant(listOf(3, value)) { writeByte(3); writeInt(value) }
+
+    private fun classConstant(internalName: String): Int {
+        val name = utf8Constant(internalName)
+        return constant(listOf(7, internalName)) { writeByte(7); writeShort(name) }
+    }
+
+    private fun stringConstant(value: String): Int {
+        val utf8 = utf8Constant(value)
+        return constant(listOf(8, value)) { writeByte(8); writeShort(utf8) }
+    }
+
+    private fun methodConstant(owner: String, name: String, descriptor: String): Int {
+        val ownerClass = classConstant(owner)
+        val nameIndex = utf8Constant(name)
+        val descriptorIndex = utf8Constant(descriptor)
+        val nameAndType = constant(listOf(12, name, descriptor)) {
+            writeByte(12)
+            writeShort(nameIndex)
+            writeShort(descriptorIndex)
+        }
+        return constant(listOf(10, owner, name, descriptor)) {
+            writeByte(10)
+            writeShort(ownerClass)
+            writeShort(nameAndType)
+        }
+    }
+
+    /**
+     * Writes the code of a public static method. Instructions pop their operands from and push their result to the
+     * tracked stack. After a `goto`, return or throw the code is unreachable until a label that was jumped to, and
+     * writing instructions there is an error, because the verifier rejects code it cannot reach.
+     */
+    inner class MethodWriter internal constructor(
+        private val name: String,
+        private val descriptor: String,
+        parameters: List<Type>
+    ) {
+        private var code = ByteArray(256)
+        private var size = 0
+        private val stack = mutableListOf<Type>()
+        private var maxStack = 0
+        private var maxLocals = parameters.size
+        private val frames = TreeMap<Int, Frame>()
+        private val jumps = mutableListOf<Pair<Int, Label>>()
+
+        /**
+         * The types of the locals in scope, by slot.
+         */
+        val locals = parameters.toMutableList()
+
+        var isReachable = true
+            private set
+
+        fun pushInt(value: Int) {
+            when (value) {
+                in -1..5 -> op(ICONST_0 + value)
+                in Byte.MIN_VALUE..Byte.MAX_VALUE -> { op(BIPUSH); u1(value) }
+                in Short.MIN_VALUE..Short.MAX_VALUE -> { op(SIPUSH); u2(value) }
+                else -> ldc(integerConstant(value))
+            }
+            push(Type.Integer)
+        }
+
+        fun pushString(value: String) {
+            ldc(stringConstant(value))
+            push(Type.Reference("java/lang/String"))
+        }
+
+        fun pushNull() {
+            op(ACONST_NULL)
+            push(Type.Null)
+        }
+
+        fun load(slot: Int) {
+            val type = locals[slot]
+            local(if (type == Type.Integer) ILOAD else ALOAD, slot)
+            push(type)
+        }
+
+        /**
+         * Stores the top of the stack into [slot], which holds values of [type] from now on.
+         */
+        fun store(slot: Int, type: Type) {
+            pop(1)
+            local(if (type == Type.Integer) ISTORE else ASTORE, slot)
+            while (locals.size <= slot) locals += Type.Top
+            locals[slot] = type
+            maxLocals = maxOf(maxLocals, slot + 1)
+        }
+
+        /**
+         * Ends the scope of the locals declared since [scope] was taken from [locals].
+         */
+        fun restoreLocals(scope: List<Type>) {
+            locals.clear()
+            locals += scope
+        }
+
+        /**
+         * An instruction with two Int operands and an Int result, e.g. `iadd`.
+         */
+        fun arithmetic(opcode: Int) {
+            op(opcode)
+            pop(2)
+            push(Type.Integer)
+        }
+
+        fun pop() {
+            op(POP)
+            pop(1)
+        }
+
+        fun jump(opcode: Int, label: Label) {
+            pop(
+                when (opcode) {
+                    GOTO -> 0
+                    IFEQ, IFNE -> 1
+                    else -> 2
+                }
+            )
+            jumps += size to label
+            op(opcode)
+            u2(0)
+            if (label.stack == null) label.stack = stack.toList()
+            if (opcode == GOTO) isReachable = false
+        }
+
+        /**
+         * Places [label] at the current position. Code following unreachable code stays unreachable unless something
+         * jumps to the label.
+         */
+        fun place(label: Label) {
+            if (!isReachable) {
+                val jumpStack = label.stack ?: return
+                stack.clear()
+                stack += jumpStack
+                isReachable = true
+            }
+            label.position = size
+            frames[size] = Frame(locals.toList(), stack.toList())
+        }
+
+        fun invokeStatic(owner: String, name: String, descriptor: String) = invoke(INVOKESTATIC, owner, name, descriptor)
+
+        fun invokeVirtual(owner: String, name: String, descriptor: String) {
+            pop(1)
+            invoke(INVOKEVIRTUAL, owner, name, descriptor)
+        }
+
+        private fun invoke(opcode: Int, owner: String, name: String, descriptor: String) {
+            op(opcode)
+            u2(methodConstant(owner, name, descriptor))
+            val (parameterTypes, returnType) = parseDescriptor(descriptor)
+            pop(parameterTypes.size)
+            returnType?.let(::push)
+        }
+
+        fun returnValue(type: Type?) {
+            when (type) {
+                null -> op(RETURN)
+                Type.Integer -> { op(IRETURN); pop(1) }
+                else -> { op(ARETURN); pop(1) }
+            }
+            isReachable = false
+        }
+
+        /**
+         * Throws a NullPointerException, for the end of a method that the verifier cannot tell is unreachable.
+         */
+        fun throwNull() {
+            pushNull()
+            op(ATHROW)
+            pop(1)
+            isReachable = false
+        }
+
+        private fun push(type: Type) {
+            stack += type
+            maxStack = maxOf(maxStack, stack.size)
+        }
+
+        private fun pop(count: Int) = repeat(count) { stack.removeLast() }
+
+        private fun ldc(index: Int) {
+            if (index <= 0xFF) {
+                op(LDC)
+                u1(index)
+            } else {
+                op(LDC_W)
+                u2(index)
+            }
+        }
+
+        private fun local(opcode: Int, slot: Int) {
+            if (slot <= 0xFF) {
+                op(opcode)
+                u1(slot)
+            } else {
+                op(WIDE)
+                u1(opcode)
+                u2(slot)
+            }
+        }
+
+        private fun op(opcode: Int) {
+            check(isReachable) { "Unreachable code in $name" }
+            u1(opcode)
+        }
+
+        private fun u1(value: Int) {
+            if (size == code.size) code = code.copyOf(size * 2)
+            code[size++] = value.toByte()
+        }
+
+        private fun u2(value: Int) {
+            u1(value shr 8)
+            u1(value)
+        }
+
+        internal fun toByteArray(): ByteArray {
+            check(!isReachable) { "The code of $name falls off its end" }
+            for ((position, label) in jumps) {
+                val offset = label.position - position
+                check(label.position >= 0 && offset in Short.MIN_VALUE..Short.MAX_VALUE) { "The code of $name is too large" }
+                code[position + 1] = (offset shr 8).toByte()
+                code[position + 2] = offset.toByte()
+            }
+            check(size <= MAX_CODE_SIZE) { "The code of $name is too large" }
+
+            val stackMapTable = ByteArrayOutputStream()
+            DataOutputStream(stackMapTable).run {
+                writeShort(frames.size)
+                var previous = -1
+                for ((position, frame) in frames) {
+                    writeByte(FULL_FRAME)
+                    writeShort(position - previous - 1)
+                    previous = position
+                    val frameLocals = frame.locals.dropLastWhile { it == Type.Top }
+                    writeShort(frameLocals.size)
+                    frameLocals.forEach { writeType(it) }
+                    writeShort(frame.stack.size)
+                    frame.stack.forEach { writeType(it) }
+                }
+            }
+
+            val codeAttribute = ByteArrayOutputStream()
+            DataOutputStream(codeAttribute).run {
+                writeShort(maxStack)
+                writeShort(maxLocals)
+                writeInt(size)
+                write(code, 0, size)
+                writeShort(0)
+                if (frames.isEmpty()) {
+                    writeShort(0)
+                } else {
+                    writeShort(1)
+                    writeShort(utf8Constant("StackMapTable"))
+                    writeInt(stackMapTable.size())
+                    write(stackMapTable.toByteArray())
+                }
+            }
+
+            val method = ByteArrayOutputStream()
+            DataOutputStream(method).run {
+                writeShort(ACC_PUBLIC or ACC_STATIC)
+                writeShort(utf8Constant(name))
+                writeShort(utf8Constant(descriptor))
+                writeShort(1)
+                writeShort(utf8Constant("Code"))
+                writeInt(codeAttribute.size())
+                write(codeAttribute.toByteArray())
+            }
+            return method.toByteArray()
+        }
+
+        private fun DataOutputStream.writeType(type: Type) = when (type) {
+            Type.Top -> writeByte(0)
+            Type.Integer -> writeByte(1)
+            Type.Null -> writeByte(5)
+            is Type.Reference -> {
+                writeByte(7)
+                writeShort(classConstant(type.internalName))
+            }
+        }
+    }
+
+    companion object {
+        private const val CLASS_VERSION = 52
+        private const val MAX_CODE_SIZE = 65535
+        private const val FULL_FRAME = 255
+
+        private const val ACC_PUBLIC = 0x0001
+        private const val ACC_STATIC = 0x0008
+        private const val ACC_SUPER = 0x0020
+
+        const val ACONST_NULL = 1
+        const val ICONST_0 = 3
+        const val BIPUSH = 16
+        const val SIPUSH = 17
+        const val LDC = 18
+        const val LDC_W = 19
+        const val ILOAD = 21
+        const val ALOAD = 25
+        const val ISTORE = 54
+        const val ASTORE = 58
+        const val POP = 87
+        const val IADD = 96
+        const val ISUB = 100
+        const val IMUL = 104
+        const val IDIV = 108
+        const val IREM = 112
+        const val IXOR = 130
+        const val IFEQ = 153
+        const val IFNE = 154
+        const val IF_ICMPEQ = 159
+        const val IF_ICMPNE = 160
+        const val IF_ICMPLT = 161
+        const val IF_ICMPGE = 162
+        const val IF_ICMPGT = 163
+        const val IF_ICMPLE = 164
+        const val GOTO = 167
+        const val IRETURN = 172
+        const val ARETURN = 176
+        const val RETURN = 177
+        const val INVOKEVIRTUAL = 182
+        const val INVOKESTATIC = 184
+        const val ATHROW = 191
+        const val WIDE = 196
+
+        /**
+         * The verification types of the parameters and the result of a method descriptor.
+         */
+        fun parseDescriptor(descriptor: String): Pair<List<Type>, Type?> {
+            val types = mutableListOf<Type>()
+            var index = 1
+            while (descriptor[index] != ')') {
+                val start = index
+                while (descriptor[index] == '[') index++
+                if (descriptor[index] == 'L') index = descriptor.indexOf(';', index)
+                index++
+                types += fieldType(descriptor.substring(start, index))
+            }
+            val returnType = descriptor.substring(index + 1)
+            return types to if (returnType == "V") null else fieldType(returnType)
+        }
+
+        fun fieldType(descriptor: String): Type = when {
+            descriptor == "I" || descriptor == "Z" -> Type.Integer
+            descriptor.startsWith("L") -> Type.Reference(descriptor.substring(1, descriptor.length - 1))
+            else -> Type.Reference(descriptor)
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package compiler
+
+/**
+ * Writes generated code line by line into [out], prefixing each line with the current indentation.
+ * Nested code is written once at its final indentation, instead of being re-indented by every enclosing level.
+ */
+class MiniKotlinCodeEmitter(private val out: Appendable = StringBuilder(), private val indentation: String = "    ") {
+    private var level = 0
+
+    fun line(text: String) {
+        if (text.isNotEmpty()) repeat(level) { out.append(indentation) }
+        out.append(text).append('\n')
+    }
+
+    fun indented(body: () -> Unit) {
+        level++
+        body()
+        level--
+    }
+
+    /**
+     * Writes `header {`, the indented [body] and the [footer] line closing the block.
+     */
+    fun block(header: String, footer: String = "}", body: () -> Unit) {
+        open(header)
+        body()
+        close(footer)
+    }
+
+    /**
+     * Writes `header {` and indents the following lines until the matching [close], for blocks whose body is
+     * written by code that does not know about the block.
+     */
+    fun open(header: String) {
+        line("$header {")
+        level++
+    }
+
+    fun close(footer: String = "}") {
+        level--
+        line(footer)
+    }
+
+    /**
+     * Closes the current block and opens the next one on the same line, e.g. `} else {`.
+     */
+    fun reopen(header: String) {
+        close("} $header {")
+        level++
+    }
+
+    /**
+     * Writes a label one level left of the lines it labels, e.g. a `case` of a `switch`.
+     */
+    fun label(text: String) {
+        level--
+        line(text)
+        level++
+    }
+
+    /**
+     * Creates an emitter at the current indentation, for code that is generated separately, e.g. on another thread.
+     */
+    fun fork() = MiniKotlinCodeEmitter(StringBuilder(), indentation).also { it.level = level }
+
+    /**
+     * Creates an emitter one level deeper than this one, for the body of a block whose header is only known once the
+     * body is written.
+     */
+    fun forkBody() = fork().also { it.level++ }
+
+    /**
+     * Appends the code written to a [fork] of this emitter.
+     */
+    fun append(fork: MiniKotlinCodeEmitter) {
+        out.append(fork.out.toString())
+    }
+
+    override fun toString() = out.toString()
+}
@@ -1,195 +1,991 @@
 package compiler
 
-class MiniKotlinCodegen {
-    private val indentationLevel = 4
-    private fun String.indent() = prependIndent(" ".repeat(indentationLevel))
-
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * Generates the Java methods of a program into [output]. Expressions are generated in continuation-passing style:
+ * instead of returning code, generators call `k` with the Java expression of their value at the point where the
+ * code using it has to be emitted, and `next` emits the remaining statements of the block, if there are any.
+ *
+ * The code of each continuation is lifted into a method of its own, which the continuation lambda calls with the
+ * variables it captures, see [openContinuation]. [emitter] is where the code of the current method goes.
+ *
+ * With [MiniKotlinStackMode.HEAP], function bodies and the continuations of calls are wrapped into frames for the
+ * `Dispatcher` of the stdlib, which starts each frame only once the frame calling it has returned. A frame only uses
+ * parameters and variables that the lambda around it captures already.
+ *
+ * With [MiniKotlinBackend.STATE_MACHINES], the same generators emit the steps of a state machine instead of nesting
+ * lambdas, see [generateStateMachine].
+ */
+class MiniKotlinCodegen(
+    private val output: MiniKotlinCodeEmitter,
+    private val stackMode: MiniKotlinStackMode = MiniKotlinStackMode.JAVA,
+    private val backend: MiniKotlinBackend = MiniKotlinBackend.LAMBDAS,
+    private val className: String = "MiniProgram"
+) {
     private var argCounter = 0
+    private lateinit var currentFunction: MiniKotlinAst.FunctionDeclaration
     private lateinit var currentReturnType: MiniKotlinType
     private var isMain = false
+    private var isDirectFunction = false
+    private var isStateMachine = false
+    private var emitter = output
 
-    fun generate(program: MiniKotlinAst.Program) =
-        program.functionDeclaration.joinToString(separator = "\n\n") { generateFunctionDeclaration(it) }
+    /**
+     * Steps of the expression trampoline, see [generateExpression].
+     */
+    private val work = ArrayDeque<() -> Unit>()
 
-    private fun generateFunctionDeclaration(functionDeclaration: MiniKotlinAst.FunctionDeclaration) =
-        with(functionDeclaration) {
+    /**
+     * Expressions containing a call that needs a continuation. They are compared by identity, because the generated
+     * `equals` and `hashCode` of the AST data classes recurse into the whole expression.
+     */
+    private val needsContinuation: MutableSet<MiniKotlinAst.Expression> = Collections.newSetFromMap(IdentityHashMap())
+
+    /**
+     * The Java types of the variables and temporaries of a state machine by name, which become fields of its frame.
+     */
+    private val frameFields = linkedMapOf<String, String>()
+    private var labelCounter = 0
+
+    /**
+     * The Java variables of the function in declaration order, as pairs of type and name, which lifted
+     * continuations may capture. Generated names are unique within a function.
+     */
+    private val variables = mutableListOf<Pair<String, String>>()
+    private val continuations = ArrayDeque<LiftedContinuation>()
+    private val liftedMethods = mutableListOf<MiniKotlinCodeEmitter>()
+
+    /**
+     * A fork of [output] taken before any block is opened, at the level of class members. Lifted methods are forked
+     * from it, so that they are indented the same however deeply the code they are lifted from is nested.
+     */
+    private val members = output.fork()
+
+    /**
+     * Whether the step being generated can continue past the code emitted so far, see [generateSteps].
+     */
+    private var reachable = true
+
+    /**
+     * Functions are generated in parallel, each by its own codegen instance into a fork of [output], and appended
+     * in declaration order as soon as the functions before them are. All generated names are scoped to a single
+     * function.
+     */
+    fun generate(program: MiniKotlinAst.Program) {
+        var first = true
+        program.functionDeclaration.parallelStream()
+            .map { output.fork().also { fork -> MiniKotlinCodegen(fork, stackMode, backend, className).generateFunctionDeclaration(it) } }
+            .forEachOrdered { function ->
+                if (!first) output.line("")
+                first = false
+                output.append(function)
+            }
+    }
+
+    private fun generateFunctionDeclaration(functionDeclaration: MiniKotlinAst.FunctionDeclaration) = when {
+        functionDeclaration.isDirect -> generateDirectFunctionDeclaration(functionDeclaration)
+        backend == MiniKotlinBackend.STATE_MACHINES -> generateStateMachine(functionDeclaration)
+        else -> with(functionDeclaration) {
+            currentFunction = functionDeclaration
             currentReturnType = returnType
             argCounter = 0
             isMain = name == "main"
+            isDirectFunction = false
 
             val parameters = if (isMain) {
                 "String[] args"
             } else {
-                val parameters = parameterList.joinToString { "${it.type.generate()} ${it.name}" }
+                val parameters = parameterList.joinToString { "${it.type.generateUnboxed()} ${it.name}" }
                 val separator = if (parameters.isEmpty()) "" else ", "
-                "$parameters${separator}Continuation<${returnType.generate()}> __continuation"
+                "$parameters$separator${returnType.generateContinuation()} __continuation"
             }
 
-            val next = if (returnType == MiniKotlinType.Unit && name != "main") "__continuation.accept(null);"
-            else ""
-            "public static void $name($parameters) ${generateBlock(block, next)}"
+            variables += parameterList.map { it.type.generateUnboxed() to it.name }
+            if (!isMain) variables += returnType.generateContinuation() to "__continuation"
+
+            val next = if (returnType == MiniKotlinType.Unit && name != "main") {
+                { emitter.line("__continuation.accept();") }
+            } else null
+            emitter.block("public static void $name($parameters)") {
+                if (stackMode == MiniKotlinStackMode.HEAP) {
+                    openContinuation("body", emptyList())
+                    generateStatements(block, next)
+                    val body = closeContinuation()
+                    emitter.line("Dispatcher.run($body);")
+                } else {
+                    generateStatements(block, next)
+                }
+            }
+            liftedMethods.asReversed().forEach {
+                emitter.line("")
+                emitter.append(it)
+            }
         }
+    }
 
-    private fun generateBlock(block: MiniKotlinAst.Block, next: String): String =
-        "{\n" + block.statements.foldRight(next) { statement, acc -> generateStatement(statement, acc) }
-            .indent() + "\n}"
+    private fun generateStatements(block: MiniKotlinAst.Block, next: (() -> Unit)?) {
+        val statements = block.statements.foldRight(next) { statement, acc -> { generateStatement(statement, acc) } }
+        statements?.invoke()
+    }
 
-    private fun generateStatement(statement: MiniKotlinAst.Statement, next: String) = when (statement) {
+    private fun generateStatement(statement: MiniKotlinAst.Statement, next: (() -> Unit)?) = when (statement) {
         is MiniKotlinAst.VariableDeclaration -> generateVariableDeclaration(statement, next)
         is MiniKotlinAst.VariableAssignment -> generateVariableAssignment(statement, next)
         is MiniKotlinAst.If -> generateIf(statement, next)
         is MiniKotlinAst.While -> generateWhile(statement, next)
-        is MiniKotlinAst.Expression -> generateExpression(statement) { next }
+        is MiniKotlinAst.Expression -> generateExpressionStatement(statement, next)
         is MiniKotlinAst.Return -> generateReturn(statement)
     }
 
-    private fun generateVariableDeclaration(variableDeclaration: MiniKotlinAst.VariableDeclaration, next: String) =
+    /**
+     * The value of an expression statement is unused, but the calls in it are still made.
+     */
+    private fun generateExpressionStatement(expression: MiniKotlinAst.Expression, next: (() -> Unit)?) {
+        if (markContinuations(expression)) {
+            generateExpression(expression) { next?.invoke() }
+        } else {
+            generateDirectStatement(expression)
+            next?.invoke()
+        }
+    }
+
+    private fun generateVariableDeclaration(variableDeclaration: MiniKotlinAst.VariableDeclaration, next: (() -> Unit)?) =
         with(variableDeclaration) {
-            generateExpression(value) { "${type.generate()}[] $javaName = new ${type.generate()}[] { $it };\n$next" }
+            generateExpression(value) {
+                emitter.line(generateLocalDeclaration(variableDeclaration, it))
+                next?.invoke()
+            }
         }
 
-    private fun generateVariableAssignment(variableAssignment: MiniKotlinAst.VariableAssignment, next: String) =
+    private fun generateVariableAssignment(variableAssignment: MiniKotlinAst.VariableAssignment, next: (() -> Unit)?) =
         with(variableAssignment) {
-            generateExpression(value) { "${identifier.javaName}[0] = $it;\n$next" }
+            generateExpression(value) {
+                emitter.line("${generateVariable(identifier)} = $it;")
+                next?.invoke()
+            }
         }
 
-    private fun generateIf(ifStatement: MiniKotlinAst.If, next: String) = with(ifStatement) {
-        val contName = "__cont$argCounter"
-        val nextDecl =
-            if (next.isNotEmpty()) "Continuation<Void> $contName = (__${argCounter++}) -> {\n${next.indent()}\n};\n" else ""
-        val callNext = if (next.isNotEmpty()) "$contName.accept(null);" else ""
+    private fun generateIf(ifStatement: MiniKotlinAst.If, next: (() -> Unit)?) = with(ifStatement) {
+        val counter = argCounter++
+        val contName = "__cont$counter"
+        val callNext = next?.let { { emitter.line("$contName.accept();") } }
+
+        generateExpression(condition) { conditionValue ->
+            next?.let {
+                openContinuation("afterIf$counter", emptyList())
+                it()
+                val continuation = closeContinuation()
+                emitter.line("UnitContinuation $contName = $continuation;")
+                variables += "UnitContinuation" to contName
+            }
+            generateIfElse(
+                conditionValue,
+                { generateStatements(trueBlock, callNext) },
+                falseBlock?.let { { generateStatements(it, callNext) } } ?: callNext
+            )
+        }
+    }
+
+    private fun generateIfElse(condition: String, trueBody: () -> Unit, falseBody: (() -> Unit)?) {
+        emitter.line("if ($condition) {")
+        emitter.indented(trueBody)
+        falseBody?.let {
+            emitter.line("} else {")
+            emitter.indented(it)
+        }
+        emitter.line("}")
+    }
 
-        val trueBlock = generateBlock(trueBlock, callNext)
-        val falseBlock = falseBlock?.let {
-            " else " + generateBlock(it, callNext)
-        } ?: if (next.isEmpty()) "" else " else {\n${callNext.indent()}\n}"
+    /**
+     * Direct loops become native Java loops followed by the rest of the function. Others are generated as a
+     * trampolined continuation.
+     * Each iteration ends with `bounce()` on the loop's [Trampoline], which only records the request when the
+     * previous iteration is still on the stack, so the loop runs in constant stack space regardless of the number
+     * of iterations. The continuation after the loop is invoked from the exiting iteration.
+     */
+    private fun generateWhile(whileStatement: MiniKotlinAst.While, next: (() -> Unit)?) = with(whileStatement) {
+        if (isDirect) {
+            generateDirectWhile(whileStatement)
+            next?.invoke()
+            return@with
+        }
 
-        generateExpression(condition) { "${nextDecl}if ($it) $trueBlock$falseBlock" }
+        val counter = argCounter++
+        val loopName = "__loop$counter"
+        openContinuation("loop$counter", listOf("Trampoline" to loopName))
+        generateExpression(condition) { conditionValue ->
+            generateIfElse(
+                conditionValue,
+                { generateStatements(block) { emitter.line("$loopName.bounce();") } },
+                next
+            )
+        }
+        val loop = closeContinuation()
+        emitter.line("new Trampoline($loop).bounce();")
     }
 
+    private fun generateReturn(returnStatement: MiniKotlinAst.Return) = with(returnStatement) {
+        val returnValue = { v: String -> if (currentReturnType == MiniKotlinType.Unit) "" else v }
+        val generateAccept = { v: String ->
+            emitter.line("__continuation.accept(${returnValue(v)});")
+            emitter.line("return;")
+        }
+        val tailCall = selfTailCall()
+        when {
+            isMain -> Unit
+            tailCall != null -> generateTailCall(tailCall)
+            else -> value?.let { value -> generateExpression(value, generateAccept) } ?: generateAccept("")
+        }
+    }
 
     /**
-     * Generates a while loop using a recursive continuation pattern.
-     * The loop is implemented as a continuation that recursively calls itself.
-     * Note: This implementation will throw a StackOverflowError on a large number of iterations
-     * because Java does not support tail call optimization (TCO).
+     * A self tail call passes the continuation of the function on unchanged, instead of a lambda forwarding the
+     * result to it.
      */
-    private fun generateWhile(whileStatement: MiniKotlinAst.While, next: String) = with(whileStatement) {
-        val loopName = "__loop${argCounter}"
-        val continuationDeclaration = "Continuation<Void>[] $loopName = new Continuation[1];"
-        val loopAgain = "$loopName[0].accept(null);"
-        val block = generateBlock(block, loopAgain)
-        val arg = "__arg${argCounter++}"
-        val continuationStart = "$loopName[0] = ($arg) ->"
+    private fun generateTailCall(functionCall: MiniKotlinAst.FunctionCall) = with(functionCall) {
+        markContinuations(functionCall)
+        trampoline {
+            evaluateArguments(argumentList) { args ->
+                emitter.line("$name(${(args + "__continuation").joinToString()});")
+                emitter.line("return;")
+            }
+        }
+    }
 
-        val falseBlock = if (next.isEmpty()) {
-            "{}"
-        } else {
-            "{\n${next.indent()}\n}"
+    private fun MiniKotlinAst.Return.selfTailCall() =
+        (value as? MiniKotlinAst.FunctionCall)?.takeIf { it.name == currentFunction.name }
+
+    private fun hasSelfTailCall(block: MiniKotlinAst.Block): Boolean = block.statements.any { statement ->
+        when (statement) {
+            is MiniKotlinAst.Return -> statement.selfTailCall() != null
+            is MiniKotlinAst.If -> hasSelfTailCall(statement.trueBlock) || statement.falseBlock?.let(::hasSelfTailCall) ?: false
+            is MiniKotlinAst.While -> hasSelfTailCall(statement.block)
+            is MiniKotlinAst.Expression, is MiniKotlinAst.VariableAssignment, is MiniKotlinAst.VariableDeclaration -> false
         }
+    }
 
-        val loopBody = generateExpression(condition) { "if ($it) $block else $falseBlock" }.indent()
+    /**
+     * Generates [expression] and calls [k] with its value. Expressions are generated by a trampoline, so that the JVM
+     * stack does not grow with their depth: generators and continuations never call each other directly, but
+     * [schedule] the calls as [work] that is run before this returns. Subexpressions without calls that need a
+     * continuation are generated in one pass by [generateDirectExpression].
+     */
+    private fun generateExpression(expression: MiniKotlinAst.Expression, k: (String) -> Unit) {
+        if (markContinuations(expression)) trampoline { evaluate(expression, k) } else k(generateDirectExpression(expression))
+    }
 
-        "$continuationDeclaration\n$continuationStart {\n$loopBody\n};\n$loopAgain"
+    /**
+     * Runs [start] and the work it schedules.
+     */
+    private fun trampoline(start: () -> Unit) {
+        val depth = work.size
+        start()
+        while (work.size > depth) work.removeLast()()
     }
 
-    private fun generateReturn(returnStatement: MiniKotlinAst.Return) = with(returnStatement) {
-        if (isMain) "" else value?.let { value -> generateExpression(value) { "__continuation.accept($it);\nreturn;" } }
-            ?: "__continuation.accept(null);\nreturn;"
+    /**
+     * Schedules [steps] to run one after another, each after the work scheduled by the steps before it.
+     */
+    private fun schedule(vararg steps: () -> Unit) {
+        for (step in steps.reversed()) work.addLast(step)
+    }
+
+    private fun resume(k: (String) -> Unit, value: String) = schedule({ k(value) })
+
+    private fun evaluate(expression: MiniKotlinAst.Expression, k: (String) -> Unit) =
+        schedule({ generateScheduledExpression(expression, k) })
+
+    /**
+     * Operands without calls are passed on as code, like variables and literals. Operands with direct calls are
+     * stored in a temporary where they are evaluated, so that the calls are made before those of later operands.
+     */
+    private fun generateScheduledExpression(expression: MiniKotlinAst.Expression, k: (String) -> Unit) {
+        when {
+            expression !in needsContinuation && expression.postOrder().none { it is MiniKotlinAst.FunctionCall } ->
+                resume(k, generateDirectExpression(expression))
+
+            expression !in needsContinuation ->
+                resume(k, generateTemporary(expression.resolvedType!!, generateDirectExpression(expression)))
+
+            expression is MiniKotlinAst.BinaryExpression -> generateBinaryExpression(expression, k)
+            expression is MiniKotlinAst.FunctionCall -> generateFunctionCall(expression, k)
+            expression is MiniKotlinAst.Not -> evaluate(expression.value) { resume(k, generateNot(expression, it)) }
+        }
     }
 
-    private fun generateExpression(expression: MiniKotlinAst.Expression, k: (String) -> String): String =
-        when (expression) {
-            is MiniKotlinAst.BinaryExpression -> generateBinaryExpression(expression, k)
-            is MiniKotlinAst.BooleanLiteral -> k(expression.value.toString())
-            is MiniKotlinAst.FunctionCall -> generateFunctionCall(expression, k)
-            is MiniKotlinAst.Identifier -> k(expression.javaName + if (expression.isParam) "" else "[0]")
-            is MiniKotlinAst.IntegerLiteral -> k(expression.value.toString())
-            is MiniKotlinAst.Not -> generateExpression(expression.value) { k("!$it") }
-            is MiniKotlinAst.StringLiteral -> k("\"${expression.value}\"")
+    /**
+     * Marks the subexpressions of [expression] that contain a call needing a continuation, returning whether
+     * [expression] itself does.
+     */
+    private fun markContinuations(expression: MiniKotlinAst.Expression): Boolean {
+        for (node in expression.postOrder()) {
+            if (node is MiniKotlinAst.FunctionCall && !node.isDirect || node.operands.any { it in needsContinuation }) {
+                needsContinuation += node
+            }
         }
+        return expression in needsContinuation
+    }
 
-    private fun generateBinaryExpression(binaryExpression: MiniKotlinAst.BinaryExpression, k: (String) -> String) =
+    private fun generateBinaryExpression(binaryExpression: MiniKotlinAst.BinaryExpression, k: (String) -> Unit) =
         with(binaryExpression) {
             when (operation) {
-                MiniKotlinBinaryOperation.MULT, MiniKotlinBinaryOperation.DIV, MiniKotlinBinaryOperation.MOD, MiniKotlinBinaryOperation.PLUS, MiniKotlinBinaryOperation.MINUS, MiniKotlinBinaryOperation.LT, MiniKotlinBinaryOperation.GT, MiniKotlinBinaryOperation.LE, MiniKotlinBinaryOperation.GE -> {
-                    generateExpression(left) { lValue ->
-                        generateExpression(right) { rValue ->
-                            k("($lValue $operation $rValue)")
+                MiniKotlinBinaryOperation.MULT, MiniKotlinBinaryOperation.DIV, MiniKotlinBinaryOperation.MOD, MiniKotlinBinaryOperation.PLUS, MiniKotlinBinaryOperation.MINUS, MiniKotlinBinaryOperation.LT, MiniKotlinBinaryOperation.GT, MiniKotlinBinaryOperation.LE, MiniKotlinBinaryOperation.GE, MiniKotlinBinaryOperation.EQ, MiniKotlinBinaryOperation.NEQ -> {
+                    evaluate(left) { lValue ->
+                        evaluate(right) { rValue ->
+                            resume(k, generateBinaryOperation(binaryExpression, lValue, rValue))
                         }
                     }
                 }
 
-                MiniKotlinBinaryOperation.EQ -> generateExpression(left) { lValue ->
-                    generateExpression(right) { rValue ->
-                        k("java.util.Objects.equals($lValue, $rValue)")
-                    }
+                MiniKotlinBinaryOperation.AND if isDirect -> generateDirectShortCircuit(binaryExpression, k)
+                MiniKotlinBinaryOperation.OR if isDirect -> generateDirectShortCircuit(binaryExpression, k)
+                MiniKotlinBinaryOperation.AND, MiniKotlinBinaryOperation.OR -> generateShortCircuit(binaryExpression, k)
+            }
+        }
+
+    /**
+     * A right operand that needs no continuation is evaluated inline by the native Java operator.
+     */
+    private fun generateDirectShortCircuit(binaryExpression: MiniKotlinAst.BinaryExpression, k: (String) -> Unit) =
+        with(binaryExpression) {
+            evaluate(left) { lValue ->
+                resume(k, generateBinaryOperation(binaryExpression, lValue, generateDirectExpression(right)))
+            }
+        }
+
+    /**
+     * The right operand is only evaluated when the left one does not decide the result, which then passes straight
+     * to the continuation.
+     */
+    private fun generateShortCircuit(binaryExpression: MiniKotlinAst.BinaryExpression, k: (String) -> Unit) =
+        if (isStateMachine) generateShortCircuitStep(binaryExpression, k)
+        else with(binaryExpression) {
+            val counter = argCounter++
+            val contName = "__cont$counter"
+            val invokeK = { v: String -> emitter.line("$contName.accept($v);") }
+            val evaluateRight = { evaluate(right, invokeK) }
+            val decided = { invokeK((operation == MiniKotlinBinaryOperation.OR).toString()) }
+
+            openContinuation(
+                "after${if (operation == MiniKotlinBinaryOperation.AND) "And" else "Or"}$counter",
+                listOf("boolean" to "__$counter")
+            )
+            schedule({ k("__$counter") }, {
+                val continuation = closeContinuation()
+                emitter.line("BooleanContinuation $contName = $continuation;")
+                variables += "BooleanContinuation" to contName
+            }, {
+                evaluate(left) { lValue ->
+                    if (operation == MiniKotlinBinaryOperation.AND) scheduleIfElse(lValue, evaluateRight, decided)
+                    else scheduleIfElse(lValue, decided, evaluateRight)
+                }
+            })
+        }
+
+    /**
+     * Like [generateIfElse], for branches that [schedule] their code.
+     */
+    private fun scheduleIfElse(condition: String, trueBody: () -> Unit, falseBody: () -> Unit) {
+        emitter.open("if ($condition)")
+        schedule(trueBody, { emitter.reopen("else") }, falseBody, { emitter.close() })
+    }
+
+    private fun generateFunctionCall(functionCall: MiniKotlinAst.FunctionCall, k: (String) -> Unit) =
+        with(functionCall) {
+            val call: (List<String>) -> Unit = when {
+                isDirect -> {
+                    val tmpArg = "__arg${argCounter++}"
+                    { args -> resume(k, generateTemporary(resolvedType!!, "${generateCallee(functionCall)}(${args.joinToString()})", tmpArg)) }
                 }
 
-                MiniKotlinBinaryOperation.NEQ -> generateExpression(left) { lValue ->
-                    generateExpression(right) { rValue ->
-                        k("!java.util.Objects.equals($lValue, $rValue)")
+                isStateMachine -> {
+                    { args -> generateCallStep(functionCall, args, k) }
+                }
+
+                else -> {
+                    val counter = argCounter++
+                    val tmpArg = "__arg$counter"
+                    val isUnit = resolvedType == MiniKotlinType.Unit
+                    val construct = "after${name.substringAfterLast('.').replaceFirstChar { it.uppercase() }}$counter"
+                    { args ->
+                        openContinuation(construct, if (isUnit) emptyList() else listOf(resolvedType!!.generateUnboxed() to tmpArg))
+                        schedule({ k(if (isUnit) "null" else tmpArg) }, {
+                            val continuation = closeContinuation(inFrame = stackMode == MiniKotlinStackMode.HEAP)
+                            emitter.line("$name(${(args + continuation).joinToString()});")
+                        })
                     }
                 }
+            }
 
-                MiniKotlinBinaryOperation.AND -> generateShortCircuit(
-                    left,
-                    right,
-                    k,
-                    { rEval, _ -> rEval },
-                    { _, invokeK -> invokeK("false") },
-                )
+            evaluateArguments(argumentList, call)
+        }
 
-                MiniKotlinBinaryOperation.OR -> generateShortCircuit(
-                    left,
-                    right,
-                    k,
-                    { _, invokeK -> invokeK("true") },
-                    { rEval, _ -> rEval },
-                )
+    /**
+     * Evaluates the arguments in order and calls [call] with their values.
+     */
+    private fun evaluateArguments(argumentList: List<MiniKotlinAst.Expression>, call: (List<String>) -> Unit) {
+        val evaluateArgs = argumentList.foldRight(call) { expr, nextStep ->
+            { currentArgs ->
+                evaluate(expr) { nextStep(currentArgs + it) }
             }
         }
 
-    private fun generateShortCircuit(
-        left: MiniKotlinAst.Expression,
-        right: MiniKotlinAst.Expression,
-        k: (String) -> String,
-        onTrue: (rEval: String, invokeK: (String) -> String) -> String,
-        onFalse: (rEval: String, invokeK: (String) -> String) -> String
-    ): String {
-        val counter = argCounter++
-        val contName = "__cont$counter"
-        val kDecl = "Continuation<Boolean> $contName = (__$counter) -> {\n${k("__$counter").indent()}\n};\n"
-        val invokeK = { v: String -> "$contName.accept($v);" }
+        evaluateArgs(emptyList())
+    }
 
-        return kDecl + generateExpression(left) { lValue ->
-            val rEval = generateExpression(right) { rValue -> invokeK(rValue) }
+    /**
+     * Starts the code of a continuation, which is generated into a method of its own until the matching
+     * [closeContinuation]. The method is named after the function and the [construct] the continuation follows, so
+     * that the Java code stays flat and profiles show where each frame comes from. [parameters] are those of the
+     * continuation lambda, as pairs of type and name.
+     */
+    private fun openContinuation(construct: String, parameters: List<Pair<String, String>>) {
+        continuations.addLast(
+            LiftedContinuation(emitter, "${currentFunction.name}\$$construct", parameters, variables.size)
+        )
+        variables += parameters
+        emitter = members.forkBody()
+    }
 
-            "if ($lValue) {\n${
-                onTrue(rEval, invokeK).indent()
-            }\n} else {\n${
-                onFalse(rEval, invokeK).indent()
-            }\n}"
+    /**
+     * Ends the code started by [openContinuation] and returns the lambda calling the lifted method, or a method
+     * reference when no variables have to be passed. The method takes the variables of the enclosing code that its
+     * code mentions, followed by the parameters of the lambda. [inFrame] lambdas call it in a `Dispatcher` frame.
+     *
+     * This switches [emitter] back to the enclosing code, so the result has to be stored before [emitter] is used.
+     */
+    private fun closeContinuation(inFrame: Boolean = false): String {
+        val continuation = continuations.removeLast()
+        val code = emitter
+        emitter = continuation.outer
+
+        val mentioned = identifiers(code.toString())
+        val captured = variables.subList(0, continuation.scope).filter { (_, name) -> name in mentioned }
+        variables.subList(continuation.scope, variables.size).clear()
+        val parameters = captured + continuation.parameters
+        liftedMethods += members.fork().apply {
+            block("private static void ${continuation.name}(${parameters.joinToString { (type, name) -> "$type $name" }})") {
+                append(code)
+            }
+        }
+
+        val call = "${continuation.name}(${parameters.joinToString { it.second }})"
+        return when {
+            inFrame -> "(${continuation.parameters.joinToString { it.second }}) -> Dispatcher.run(() -> $call)"
+            captured.isEmpty() -> "$className::${continuation.name}"
+            else -> "(${continuation.parameters.joinToString { it.second }}) -> $call"
         }
     }
 
-    private fun generateFunctionCall(functionCall: MiniKotlinAst.FunctionCall, k: (String) -> String): String =
+    /**
+     * The identifiers in [code], outside of string literals.
+     */
+    private fun identifiers(code: String): Set<String> {
+        val identifiers = HashSet<String>()
+        var index = 0
+        while (index < code.length) {
+            when {
+                code[index] == '"' -> {
+                    index++
+                    while (code[index] != '"') index += if (code[index] == '\\') 2 else 1
+                    index++
+                }
+
+                code[index].isJavaIdentifierStart() -> {
+                    val start = index
+                    while (index < code.length && code[index].isJavaIdentifierPart()) index++
+                    identifiers += code.substring(start, index)
+                }
+
+                else -> index++
+            }
+        }
+        return identifiers
+    }
+
+    /**
+     * Stores [value] in a new temporary and returns its name. The temporaries of a state machine are fields, so
+     * that they keep their value across the steps.
+     */
+    private fun generateTemporary(type: MiniKotlinType, value: String, tmpArg: String = "__arg${argCounter++}"): String {
+        if (isStateMachine) {
+            frameFields[tmpArg] = type.generateUnboxed()
+            emitter.line("$tmpArg = $value;")
+        } else {
+            variables += type.generateUnboxed() to tmpArg
+            emitter.line("${type.generateUnboxed()} $tmpArg = $value;")
+        }
+        return tmpArg
+    }
+
+    // State-machine generation of functions that need continuations, see MiniKotlinBackend.STATE_MACHINES
+
+    /**
+     * A function becomes a static method starting a new frame, an instance of a nested class extending the
+     * `StateMachine` of the stdlib. The `run` method of the frame is generated into a fork by its own codegen
+     * instance first, so that the fields for its variables and temporaries are known when the class is written.
+     */
+    private fun generateStateMachine(functionDeclaration: MiniKotlinAst.FunctionDeclaration) = with(functionDeclaration) {
+        isMain = name == "main"
+        val frame = "$name\$Frame"
+        val parameters = parameterList.map { "${it.type.generateUnboxed()} ${it.name}" }
+        val continuation = if (isMain) emptyList() else listOf("${returnType.generateContinuation()} __continuation")
+        val arguments = parameterList.map { it.name } + if (isMain) emptyList() else listOf("__continuation")
+
+        emitter.block("public static void $name(${if (isMain) "String[] args" else (parameters + continuation).joinToString()})") {
+            emitter.line("new $frame(${arguments.joinToString()}).resume();")
+        }
+        emitter.line("")
+        emitter.block("private static final class $frame extends StateMachine") {
+            val run = MiniKotlinCodegen(emitter.fork(), stackMode, backend, className).also { it.generateRun(functionDeclaration) }
+            val fields = continuation.map { "private final $it;" } + parameters.map { "private $it;" } +
+                run.frameFields.map { (field, type) -> "private $type $field;" }
+            fields.forEach(emitter::line)
+            if (fields.isNotEmpty()) emitter.line("")
+            emitter.block("$frame(${(parameters + continuation).joinToString()})") {
+                arguments.forEach { emitter.line("this.$it = $it;") }
+            }
+            if (stackMode == MiniKotlinStackMode.HEAP) {
+                emitter.line("")
+                emitter.line("@Override")
+                emitter.block("public void resume()") { emitter.line("Dispatcher.run(this);") }
+            }
+            emitter.line("")
+            emitter.append(run.output)
+        }
+    }
+
+    /**
+     * The body runs as a `switch` over the `label` of the next step. A step ends by jumping to another one, by
+     * returning after a call that resumes the frame later, or by falling through to the `case` of the next step.
+     * The fields of `StateMachine` are accessed through `super`, because parameters of the same name hide them.
+     */
+    private fun generateRun(functionDeclaration: MiniKotlinAst.FunctionDeclaration) = with(functionDeclaration) {
+        currentFunction = functionDeclaration
+        currentReturnType = returnType
+        isMain = name == "main"
+        isStateMachine = true
+
+        emitter.line("@Override")
+        emitter.block("public void run()") {
+            emitter.block("while (true)") {
+                emitter.block("switch (super.label)") {
+                    emitter.indented {
+                        emitter.label("case 0:")
+                        generateSteps(block)
+                        if (reachable) {
+                            if (!isMain) emitter.line("__continuation.accept();")
+                            emitter.line("return;")
+                        }
+                        emitter.label("default:")
+                        emitter.line("throw new IllegalStateException(\"Invalid label \" + super.label);")
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Statements without calls that need a continuation are generated like those of direct functions. Statements
+     * following one that always returns are dropped, because javac rejects unreachable code.
+     */
+    private fun generateSteps(block: MiniKotlinAst.Block) {
+        for (statement in block.statements) {
+            if (!reachable) break
+            if (suspends(statement)) {
+                generateStep(statement)
+            } else {
+                generateDirectStatement(statement)
+                reachable = !MiniKotlinSemanticAnalyser.alwaysReturns(statement)
+            }
+        }
+    }
+
+    private fun generateStep(statement: MiniKotlinAst.Statement) {
+        when (statement) {
+            is MiniKotlinAst.VariableDeclaration ->
+                emitter.line(generateLocalDeclaration(statement, generateValue(statement.value)))
+
+            is MiniKotlinAst.VariableAssignment ->
+                emitter.line("${generateVariable(statement.identifier)} = ${generateValue(statement.value)};")
+
+            is MiniKotlinAst.If -> generateIfSteps(statement)
+            is MiniKotlinAst.While -> generateWhileSteps(statement)
+            is MiniKotlinAst.Return -> generateReturnStep(statement)
+            is MiniKotlinAst.Expression -> generateValue(statement)
+        }
+    }
+
+    private fun suspends(statement: MiniKotlinAst.Statement): Boolean = when (statement) {
+        is MiniKotlinAst.VariableDeclaration -> markContinuations(statement.value)
+        is MiniKotlinAst.VariableAssignment -> markContinuations(statement.value)
+        is MiniKotlinAst.If -> markContinuations(statement.condition) || suspends(statement.trueBlock) ||
+            statement.falseBlock?.let(::suspends) == true
+
+        is MiniKotlinAst.While -> !statement.isDirect
+        is MiniKotlinAst.Return -> statement.value?.let(::markContinuations) == true
+        is MiniKotlinAst.Expression -> markContinuations(statement)
+    }
+
+    private fun suspends(block: MiniKotlinAst.Block) = block.statements.any(::suspends)
+
+    /**
+     * Emits the steps evaluating [expression] and returns the code of its value. The generators of a state machine
+     * never open a lambda, so the value is known once [generateExpression] returns.
+     */
+    private fun generateValue(expression: MiniKotlinAst.Expression): String {
+        var value = ""
+        generateExpression(expression) { value = it }
+        return value
+    }
+
+    /**
+     * The condition jumps to the step of the else branch, or past the if when there is none.
+     */
+    private fun generateIfSteps(ifStatement: MiniKotlinAst.If) = with(ifStatement) {
+        val conditionValue = generateValue(condition)
+        val elseLabel = falseBlock?.let { nextLabel() }
+        val endLabel = nextLabel()
+        emitter.block("if (!($conditionValue))") { generateJump(elseLabel ?: endLabel) }
+        generateSteps(trueBlock)
+        if (falseBlock != null) {
+            val trueReachable = reachable
+            if (reachable) generateJump(endLabel)
+            emitter.label("case $elseLabel:")
+            reachable = true
+            generateSteps(falseBlock)
+            reachable = reachable || trueReachable
+        } else {
+            reachable = true
+        }
+        if (reachable) emitter.label("case $endLabel:")
+    }
+
+    /**
+     * Each iteration jumps back to the step testing the condition, so the loop runs in constant stack space.
+     */
+    private fun generateWhileSteps(whileStatement: MiniKotlinAst.While) = with(whileStatement) {
+        val conditionLabel = nextLabel()
+        val endLabel = nextLabel()
+        emitter.label("case $conditionLabel:")
+        val conditionValue = generateValue(condition)
+        emitter.block("if (!($conditionValue))") { generateJump(endLabel) }
+        generateSteps(block)
+        if (reachable) generateJump(conditionLabel)
+        emitter.label("case $endLabel:")
+        reachable = true
+    }
+
+    private fun generateReturnStep(returnStatement: MiniKotlinAst.Return) = with(returnStatement) {
+        val tailCall = selfTailCall()
+        when {
+            isMain -> emitter.line("return;")
+            tailCall != null -> generateTailCallStep(tailCall)
+            else -> {
+                val returnValue = generateValue(value!!)
+                emitter.line("__continuation.accept(${if (currentReturnType == MiniKotlinType.Unit) "" else returnValue});")
+                emitter.line("return;")
+            }
+        }
+        reachable = false
+    }
+
+    /**
+     * Self tail calls rebind the parameters and restart the frame at its first step, instead of starting a new one.
+     */
+    private fun generateTailCallStep(functionCall: MiniKotlinAst.FunctionCall) {
+        markContinuations(functionCall)
+        trampoline {
+            evaluateArguments(functionCall.argumentList) { args ->
+                generateRebinding(args)
+                generateJump(0)
+            }
+        }
+    }
+
+    /**
+     * A call passes the frame as its continuation and returns from `run`. The frame resumes at the next step, which
+     * copies the result out of the field it was stored in, before a later call overwrites it.
+     */
+    private fun generateCallStep(functionCall: MiniKotlinAst.FunctionCall, args: List<String>, k: (String) -> Unit) =
         with(functionCall) {
-            val tmpArg = "__arg${argCounter++}"
-            val next = k(tmpArg).indent().trimEnd()
-            val block = if (next.isEmpty()) "{});" else "{\n$next\n});"
+            val resumeLabel = nextLabel()
+            emitter.line("super.label = $resumeLabel;")
+            emitter.line("${generateCallee(functionCall)}(${(args + "this").joinToString()});")
+            emitter.line("return;")
+            emitter.label("case $resumeLabel:")
+            resume(k, when (val type = resolvedType!!) {
+                MiniKotlinType.Int -> generateTemporary(type, "super.intResult")
+                MiniKotlinType.Boolean -> generateTemporary(type, "super.booleanResult")
+                MiniKotlinType.String -> generateTemporary(type, "super.stringResult")
+                MiniKotlinType.Unit, MiniKotlinType.Any -> "null"
+            })
+        }
 
-            val evaluateArgs = argumentList.foldRight({ args: String ->
-                "$name($args($tmpArg) -> $block"
-            }) { expr, nextStep ->
-                { currentArgs ->
-                    generateExpression(expr) { nextStep("$currentArgs$it, ") }
+    /**
+     * The left operand jumps past the step evaluating the right one when it decides the result.
+     */
+    private fun generateShortCircuitStep(binaryExpression: MiniKotlinAst.BinaryExpression, k: (String) -> Unit) =
+        with(binaryExpression) {
+            val result = "__arg${argCounter++}"
+            val endLabel = nextLabel()
+            frameFields[result] = "boolean"
+            evaluate(left) { lValue ->
+                emitter.line("$result = $lValue;")
+                emitter.block(if (operation == MiniKotlinBinaryOperation.OR) "if ($result)" else "if (!$result)") {
+                    generateJump(endLabel)
+                }
+                evaluate(right) { rValue ->
+                    emitter.line("$result = $rValue;")
+                    emitter.label("case $endLabel:")
+                    resume(k, result)
                 }
             }
+        }
+
+    /**
+     * Calls from a frame are qualified with the program class, because the members the frame inherits, e.g. `run`
+     * or `toString`, hide the static methods of the same name. Builtins are qualified already.
+     */
+    private fun generateCallee(functionCall: MiniKotlinAst.FunctionCall) =
+        if (isStateMachine && '.' !in functionCall.name) "$className.${functionCall.name}" else functionCall.name
+
+    private fun generateJump(target: Int) {
+        emitter.line("super.label = $target;")
+        emitter.line("continue;")
+    }
+
+    private fun nextLabel() = ++labelCounter
+
+    // Direct-style generation of functions that never need a continuation, see MiniKotlinDirectStyleAnalyser
 
-            evaluateArgs("")
+    private fun generateDirectFunctionDeclaration(functionDeclaration: MiniKotlinAst.FunctionDeclaration) =
+        with(functionDeclaration) {
+            currentFunction = functionDeclaration
+            argCounter = 0
+            isDirectFunction = true
+            val parameters = parameterList.joinToString { "${it.type.generateUnboxed()} ${it.name}" }
+            emitter.block("public static ${returnType.generateUnboxed()} $name($parameters)") {
+                if (hasSelfTailCall(block)) {
+                    emitter.block("$TAIL_LOOP: while (true)") { generateDirectStatements(block) }
+                } else {
+                    generateDirectStatements(block)
+                }
+            }
+        }
+
+    /**
+     * Statements following one that always returns are dropped, because javac rejects unreachable code.
+     */
+    private fun generateDirectStatements(block: MiniKotlinAst.Block) {
+        val returnIndex = block.statements.indexOfFirst { MiniKotlinSemanticAnalyser.alwaysReturns(it) }
+        val statements = if (returnIndex == -1) block.statements else block.statements.take(returnIndex + 1)
+        statements.forEach(::generateDirectStatement)
+    }
+
+    private fun generateDirectStatement(statement: MiniKotlinAst.Statement): Unit = when (statement) {
+        is MiniKotlinAst.VariableDeclaration ->
+            emitter.line(generateLocalDeclaration(statement, generateDirectExpression(statement.value)))
+
+        is MiniKotlinAst.VariableAssignment -> with(statement) {
+            emitter.line("${generateVariable(identifier)} = ${generateDirectExpression(value)};")
         }
 
+        is MiniKotlinAst.If -> with(statement) {
+            generateIfElse(
+                generateDirectExpression(condition),
+                { generateDirectStatements(trueBlock) },
+                falseBlock?.let { { generateDirectStatements(it) } }
+            )
+        }
+
+        is MiniKotlinAst.While -> generateDirectWhile(statement)
+        is MiniKotlinAst.Return -> generateDirectReturn(statement)
+        is MiniKotlinAst.FunctionCall -> emitter.line("${generateDirectExpression(statement)};")
+        is MiniKotlinAst.Expression -> emitter.line(
+            "${statement.resolvedType!!.generateUnboxed()} __arg${argCounter++} = ${generateDirectExpression(statement)};"
+        )
+    }
+
+    /**
+     * Direct statements also appear in the native loops of CPS functions, which return through the continuation.
+     */
+    private fun generateDirectReturn(returnStatement: MiniKotlinAst.Return) = with(returnStatement) {
+        when {
+            isDirectFunction -> selfTailCall()?.let(::generateDirectTailCall)
+                ?: emitter.line(value?.let { "return ${generateDirectExpression(it)};" } ?: "return;")
+            isMain -> emitter.line("return;")
+            else -> {
+                val returnValue = if (currentReturnType == MiniKotlinType.Unit) "" else generateDirectExpression(value!!)
+                emitter.line("__continuation.accept($returnValue);")
+                emitter.line("return;")
+            }
+        }
+    }
+
+    /**
+     * Self tail calls of direct functions rebind the parameters and restart the body, which is wrapped in a loop
+     * labeled [TAIL_LOOP].
+     */
+    private fun generateDirectTailCall(functionCall: MiniKotlinAst.FunctionCall) {
+        generateRebinding(functionCall.argumentList.map(::generateDirectExpression))
+        emitter.line("continue $TAIL_LOOP;")
+    }
+
+    /**
+     * Rebinds the parameters of the current function to [arguments] for a self tail call. All arguments are
+     * evaluated before the first parameter changes, and parameters passed on as they are keep their value.
+     */
+    private fun generateRebinding(arguments: List<String>) {
+        val rebound = currentFunction.parameterList.zip(arguments).filterNot { (parameter, argument) ->
+            argument == parameter.name
+        }
+        if (rebound.size == 1) {
+            val (parameter, argument) = rebound.single()
+            emitter.line("${parameter.name} = $argument;")
+        } else {
+            val values = rebound.map { (parameter, argument) ->
+                "__arg${argCounter++}".also { emitter.line("${parameter.type.generateUnboxed()} $it = $argument;") }
+            }
+            rebound.zip(values).forEach { (rebinding, value) -> emitter.line("${rebinding.first.name} = $value;") }
+        }
+    }
+
+    /**
+     * A condition without variables or calls may be a constant expression, after which javac rejects the code
+     * following `while (true)` as unreachable. Such conditions are tested by a `break` inside the loop instead.
+     */
+    private fun generateDirectWhile(whileStatement: MiniKotlinAst.While) = with(whileStatement) {
+        val condition = generateDirectExpression(condition)
+        if (isConstant(whileStatement.condition)) {
+            emitter.block("while (true)") {
+                emitter.line("if (!($condition)) break;")
+                generateDirectStatements(block)
+            }
+        } else {
+            emitter.block("while ($condition)") { generateDirectStatements(block) }
+        }
+    }
+
+    private fun isConstant(expression: MiniKotlinAst.Expression) =
+        expression.postOrder().none { it is MiniKotlinAst.FunctionCall || it is MiniKotlinAst.Identifier }
+
+    /**
+     * Writes the expression in order from a stack of the expressions still to be written and the code between them,
+     * so that deep expressions neither recurse nor copy the code of every subexpression.
+     */
+    private fun generateDirectExpression(expression: MiniKotlinAst.Expression): String {
+        val code = StringBuilder()
+        val stack = mutableListOf<Any>(expression)
+        while (stack.isNotEmpty()) {
+            when (val next = stack.removeLast()) {
+                is String -> code.append(next)
+                is MiniKotlinAst.BinaryExpression -> {
+                    val (prefix, infix, suffix) = generateBinaryOperationParts(next)
+                    stack.addAll(listOf(suffix, next.right, infix, next.left, prefix))
+                }
+
+                is MiniKotlinAst.BooleanLiteral -> code.append(next.value)
+                is MiniKotlinAst.FunctionCall -> {
+                    stack += ")"
+                    next.argumentList.asReversed().forEachIndexed { index, argument ->
+                        if (index > 0) stack += ", "
+                        stack += argument
+                    }
+                    stack += "${generateCallee(next)}("
+                }
+
+                is MiniKotlinAst.Identifier -> code.append(generateVariable(next))
+                is MiniKotlinAst.IntegerLiteral -> code.append(next.value)
+                is MiniKotlinAst.Not -> {
+                    val (prefix, suffix) = generateNotParts(next)
+                    stack.addAll(listOf(suffix, next.value, prefix))
+                }
+
+                is MiniKotlinAst.StringLiteral -> code.append('"').append(next.value).append('"')
+            }
+        }
+        return code.toString()
+    }
+
+    private fun generateBinaryOperation(binaryExpression: MiniKotlinAst.BinaryExpression, lValue: String, rValue: String) =
+        generateBinaryOperationParts(binaryExpression).let { (prefix, infix, suffix) -> "$prefix$lValue$infix$rValue$suffix" }
+
+    /**
+     * The code before, between and after the operands. Int and Boolean operands are always unboxed, so they are
+     * compared with `==` instead of `Objects.equals`.
+     *
+     * Java binds the operators like MiniKotlin, so operands are only parenthesized where the AST groups them
+     * differently, e.g. `a - (b - c)`. Operator chains stay flat, which also keeps javac from descending into
+     * them recursively.
+     */
+    private fun generateBinaryOperationParts(binaryExpression: MiniKotlinAst.BinaryExpression) =
+        with(binaryExpression) {
+            when (operation) {
+                MiniKotlinBinaryOperation.EQ if !left.resolvedType!!.isPrimitive() -> Triple("java.util.Objects.equals(", ", ", ")")
+                MiniKotlinBinaryOperation.NEQ if !left.resolvedType!!.isPrimitive() -> Triple("!java.util.Objects.equals(", ", ", ")")
+                else -> {
+                    val parenthesizeLeft = left.bindsWeakerThan(operation.precedence)
+                    val parenthesizeRight = right.bindsWeakerThan(operation.precedence + 1)
+                    Triple(
+                        if (parenthesizeLeft) "(" else "",
+                        "${if (parenthesizeLeft) ")" else ""} $operation ${if (parenthesizeRight) "(" else ""}",
+                        if (parenthesizeRight) ")" else ""
+                    )
+                }
+            }
+        }
+
+    private fun generateNot(not: MiniKotlinAst.Not, value: String) =
+        generateNotParts(not).let { (prefix, suffix) -> "$prefix$value$suffix" }
+
+    private fun generateNotParts(not: MiniKotlinAst.Not) =
+        if (not.value is MiniKotlinAst.BinaryExpression) "!(" to ")" else "!" to ""
+
+    private fun MiniKotlinAst.Expression.bindsWeakerThan(precedence: Int) =
+        this is MiniKotlinAst.BinaryExpression && operation.precedence < precedence
+
+    // Variable storage, decided by the capture analysis of MiniKotlinSemanticAnalyser
+
+    /**
+     * Variables of state machines are fields of the frame, which no lambda captures.
+     */
+    private fun generateLocalDeclaration(variableDeclaration: MiniKotlinAst.VariableDeclaration, value: String) =
+        with(variableDeclaration) {
+            val symbol = symbol!!
+            when {
+                isStateMachine -> {
+                    frameFields[javaName] = type.generateUnboxed()
+                    "$javaName = $value;"
+                }
+
+                symbol.needsCell -> {
+                    variables += "${type.generateUnboxed()}[]" to javaName
+                    "${type.generateUnboxed()}[] $javaName = new ${type.generateUnboxed()}[] { $value };"
+                }
+
+                else -> {
+                    variables += type.generateUnboxed() to javaName
+                    "${if (symbol.isMutated) "" else "final "}${type.generateUnboxed()} $javaName = $value;"
+                }
+            }
+        }
+
+    private fun generateVariable(identifier: MiniKotlinAst.Identifier) =
+        identifier.javaName + if (identifier.symbol!!.needsCell && !isStateMachine) "[0]" else ""
+
+    private fun MiniKotlinType.isPrimitive() = this == MiniKotlinType.Int || this == MiniKotlinType.Boolean
+
+    private fun MiniKotlinType.generateUnboxed() = when (this) {
+        MiniKotlinType.Int -> "int"
+        MiniKotlinType.Boolean -> "boolean"
+        MiniKotlinType.String -> "String"
+        MiniKotlinType.Any -> "Object"
+        MiniKotlinType.Unit -> "Void"
+    }
+
     private fun MiniKotlinType.generate() = when (this) {
         MiniKotlinType.Int -> "Integer"
         MiniKotlinType.Boolean -> "Boolean"
@@ -197,4 +993,26 @@ class MiniKotlinCodegen {
         MiniKotlinType.Any -> "Object"
         MiniKotlinType.Unit -> "Void"
     }
-}
\ No newline at end of file
+
+    /**
+     * Int, Boolean and Unit results use the specialized continuation interfaces of the stdlib,
+     * so that they are passed without boxing.
+     */
+    private fun MiniKotlinType.generateContinuation() = when (this) {
+        MiniKotlinType.Int -> "IntContinuation"
+        MiniKotlinType.Boolean -> "BooleanContinuation"
+        MiniKotlinType.Unit -> "UnitContinuation"
+        MiniKotlinType.String, MiniKotlinType.Any -> "Continuation<${generate()}>"
+    }
+
+    private class LiftedContinuation(
+        val outer: MiniKotlinCodeEmitter,
+        val name: String,
+        val parameters: List<Pair<String, String>>,
+        val scope: Int
+    )
+
+    companion object {
+        private const val TAIL_LOOP = "__tail"
+    }
+}
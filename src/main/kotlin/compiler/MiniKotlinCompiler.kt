@@ -3,11 +3,45 @@ package compiler
 import MiniKotlinBaseVisitor
 import MiniKotlinParser
 
-class MiniKotlinCompiler : MiniKotlinBaseVisitor<String>() {
-    fun compile(program: MiniKotlinParser.ProgramContext, className: String = "MiniProgram"): String {
-        val ast = MiniKotlinParserVisitor().visitProgram(program)
+class MiniKotlinCompiler(
+    private val stackMode: MiniKotlinStackMode = MiniKotlinStackMode.JAVA,
+    private val backend: MiniKotlinBackend = MiniKotlinBackend.LAMBDAS
+) : MiniKotlinBaseVisitor<String>() {
+    fun compile(program: MiniKotlinParser.ProgramContext, className: String = "MiniProgram"): String =
+        compile(MiniKotlinParserVisitor().visitProgram(program), className)
+
+    /**
+     * Compiles an AST built by any frontend, e.g. [MiniKotlinPrattParser].
+     */
+    fun compile(ast: MiniKotlinAst.Program, className: String = "MiniProgram"): String =
+        StringBuilder().also { compile(ast, className, it) }.toString()
+
+    /**
+     * Writes the generated code to [out] while it is generated, one function at a time.
+     */
+    fun compile(ast: MiniKotlinAst.Program, className: String, out: Appendable) {
+        MiniKotlinDirectStyleAnalyser(ast, directFunctions = stackMode == MiniKotlinStackMode.JAVA).analyse()
+        MiniKotlinSemanticAnalyser(ast).analyse()
+        val emitter = MiniKotlinCodeEmitter(out)
+        emitter.block("public class $className") { MiniKotlinCodegen(emitter, stackMode, backend, className).generate(ast) }
+    }
+
+    /**
+     * Compiles to a class file directly, without javac, see [MiniKotlinBytecodeGenerator]. The stack mode and backend
+     * of this compiler only apply to the generated Java code.
+     */
+    fun compileToClass(program: MiniKotlinParser.ProgramContext, className: String = "MiniProgram"): ByteArray =
+        compileToClass(MiniKotlinParserVisitor().visitProgram(program), className)
+
+    fun compileToClass(ast: MiniKotlinAst.Program, className: String = "MiniProgram"): ByteArray {
         MiniKotlinSemanticAnalyser(ast).analyse()
-        val code = MiniKotlinCodegen().generate(ast)
-        return "public class $className {\n${code.prependIndent(" ".repeat(4))}\n}"
+        return MiniKotlinBytecodeGenerator(className).generate(ast)
+    }
+
+    companion object {
+        /**
+         * Part of the [org.example.compiler.CompilationCache] key. Change it whenever the generated code changes.
+         */
+        const val VERSION = "6"
     }
 }
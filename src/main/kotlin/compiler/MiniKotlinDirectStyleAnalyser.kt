@@ -0,0 +1,94 @@
+package compiler
+
+/**
+ * Finds functions that never need a continuation: functions whose transitive call graph contains only other such
+ * functions and no builtins. These are compiled to plain Java methods that return their result.
+ *
+ * `main` and functions returning `Unit` always stay in continuation-passing style, because a `Unit` function that
+ * calls no builtins has no observable effect worth a direct-style variant.
+ *
+ * Without [directFunctions], all functions stay in continuation-passing style.
+ *
+ * Likewise, while loops whose condition and body only call direct functions, and `&&` / `||` whose right operand
+ * only calls direct functions, are marked direct, so that they compile to native Java loops and operators inside
+ * continuation-passing code.
+ */
+class MiniKotlinDirectStyleAnalyser(val program: MiniKotlinAst.Program, private val directFunctions: Boolean = true) {
+    fun analyse() {
+        val callsByFunction = program.functionDeclaration.associate { it.name to collectCalls(it.block) }
+
+        val direct = program.functionDeclaration
+            .filter { directFunctions && it.name != "main" && it.returnType != MiniKotlinType.Unit }
+            .mapTo(mutableSetOf()) { it.name }
+        do {
+            val changed = direct.removeAll { name -> callsByFunction.getValue(name).any { it.name !in direct } }
+        } while (changed)
+
+        program.functionDeclaration.forEach { it.isDirect = it.name in direct }
+        callsByFunction.values.forEach { calls -> calls.forEach { it.isDirect = it.name in direct } }
+        program.functionDeclaration.forEach { markDirect(it.block) }
+    }
+
+    /**
+     * Marks direct loops and short-circuit operators, returning whether the node contains a call that needs a
+     * continuation.
+     */
+    private fun markDirect(block: MiniKotlinAst.Block) = block.statements.map(::markDirect).any { it }
+
+    private fun markDirect(statement: MiniKotlinAst.Statement): Boolean = when (statement) {
+        is MiniKotlinAst.VariableDeclaration -> markDirect(statement.value)
+        is MiniKotlinAst.VariableAssignment -> markDirect(statement.value)
+        is MiniKotlinAst.If -> listOfNotNull(
+            markDirect(statement.condition),
+            markDirect(statement.trueBlock),
+            statement.falseBlock?.let(::markDirect)
+        ).any { it }
+
+        is MiniKotlinAst.While -> {
+            val needsContinuation = markDirect(statement.condition) or markDirect(statement.block)
+            statement.isDirect = !needsContinuation
+            needsContinuation
+        }
+
+        is MiniKotlinAst.Return -> statement.value?.let(::markDirect) ?: false
+        is MiniKotlinAst.Expression -> markDirect(statement)
+    }
+
+    /**
+     * Expressions are marked in post-order, keeping whether each operand needs a continuation on a stack.
+     */
+    private fun markDirect(expression: MiniKotlinAst.Expression): Boolean {
+        val needsContinuation = ArrayDeque<Boolean>()
+        for (node in expression.postOrder()) {
+            val operands = List(node.operands.size) { needsContinuation.removeLast() }.asReversed()
+            if (node is MiniKotlinAst.BinaryExpression && (node.operation == MiniKotlinBinaryOperation.AND || node.operation == MiniKotlinBinaryOperation.OR)) {
+                node.isDirect = !operands[1]
+            }
+            needsContinuation += operands.any { it } || node is MiniKotlinAst.FunctionCall && !node.isDirect
+        }
+        return needsContinuation.single()
+    }
+
+    private fun collectCalls(block: MiniKotlinAst.Block, calls: MutableList<MiniKotlinAst.FunctionCall> = mutableListOf()) =
+        calls.also { block.statements.forEach { collectCalls(it, calls) } }
+
+    private fun collectCalls(statement: MiniKotlinAst.Statement, calls: MutableList<MiniKotlinAst.FunctionCall>) {
+        when (statement) {
+            is MiniKotlinAst.VariableDeclaration -> collectCalls(statement.value, calls)
+            is MiniKotlinAst.VariableAssignment -> collectCalls(statement.value, calls)
+            is MiniKotlinAst.If -> {
+                collectCalls(statement.condition, calls)
+                collectCalls(statement.trueBlock, calls)
+                statement.falseBlock?.let { collectCalls(it, calls) }
+            }
+
+            is MiniKotlinAst.While -> {
+                collectCalls(statement.condition, calls)
+                collectCalls(statement.block, calls)
+            }
+
+            is MiniKotlinAst.Return -> statement.value?.let { collectCalls(it, calls) }
+            is MiniKotlinAst.Expression -> statement.postOrder().filterIsInstanceTo(calls)
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package compiler
+
+/**
+ * Interns the identifiers of one program, so that all occurrences of a name share a single [String].
+ * Parsers otherwise create a new string for every occurrence, which dominates the size of large ASTs.
+ */
+class MiniKotlinNames {
+    private val names = HashMap<String, String>()
+
+    fun intern(name: String): String = names.getOrPut(name) { name }
+}
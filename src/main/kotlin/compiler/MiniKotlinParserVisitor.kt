@@ -4,6 +4,8 @@ import MiniKotlinBaseVisitor
 import MiniKotlinParser
 
 class MiniKotlinParserVisitor : MiniKotlinBaseVisitor<MiniKotlinAst.AstNode>() {
+    private val names = MiniKotlinNames()
+
     private fun parseType(ctx: MiniKotlinParser.TypeContext): MiniKotlinType = when {
         ctx.INT_TYPE() != null -> MiniKotlinType.Int
         ctx.BOOLEAN_TYPE() != null -> MiniKotlinType.Boolean
@@ -17,14 +19,14 @@ class MiniKotlinParserVisitor : MiniKotlinBaseVisitor<MiniKotlinAst.AstNode>() {
 
     override fun visitFunctionDeclaration(ctx: MiniKotlinParser.FunctionDeclarationContext) =
         MiniKotlinAst.FunctionDeclaration(
-            ctx.IDENTIFIER().text,
+            names.intern(ctx.IDENTIFIER().text),
             ctx.parameterList()?.parameter()?.map(::visitParameter).orEmpty(),
             parseType(ctx.type()),
             visitBlock(ctx.block())
         )
 
     override fun visitParameter(ctx: MiniKotlinParser.ParameterContext): MiniKotlinAst.Parameter =
-        MiniKotlinAst.Parameter(ctx.IDENTIFIER().text, parseType(ctx.type()))
+        MiniKotlinAst.Parameter(names.intern(ctx.IDENTIFIER().text), parseType(ctx.type()))
 
     override fun visitBlock(ctx: MiniKotlinParser.BlockContext) =
         MiniKotlinAst.Block(ctx.statement().map(::visitStatement))
@@ -54,12 +56,12 @@ class MiniKotlinParserVisitor : MiniKotlinBaseVisitor<MiniKotlinAst.AstNode>() {
 
     override fun visitVariableDeclaration(ctx: MiniKotlinParser.VariableDeclarationContext) =
         MiniKotlinAst.VariableDeclaration(
-            ctx.IDENTIFIER().text, parseType(ctx.type()), visitExpression(ctx.expression())
+            names.intern(ctx.IDENTIFIER().text), parseType(ctx.type()), visitExpression(ctx.expression())
         )
 
     override fun visitVariableAssignment(ctx: MiniKotlinParser.VariableAssignmentContext) =
         MiniKotlinAst.VariableAssignment(
-            MiniKotlinAst.Identifier(ctx.IDENTIFIER().text), visitExpression(ctx.expression())
+            MiniKotlinAst.Identifier(names.intern(ctx.IDENTIFIER().text)), visitExpression(ctx.expression())
         )
 
     override fun visitIfStatement(ctx: MiniKotlinParser.IfStatementContext) = MiniKotlinAst.If(
@@ -74,7 +76,7 @@ class MiniKotlinParserVisitor : MiniKotlinBaseVisitor<MiniKotlinAst.AstNode>() {
         MiniKotlinAst.Return(ctx.expression()?.let(::visitExpression))
 
     override fun visitFunctionCallExpr(ctx: MiniKotlinParser.FunctionCallExprContext) = MiniKotlinAst.FunctionCall(
-        ctx.IDENTIFIER().text, ctx.argumentList()?.expression()?.map(::visitExpression).orEmpty()
+        names.intern(ctx.IDENTIFIER().text), ctx.argumentList()?.expression()?.map(::visitExpression).orEmpty()
     )
 
     override fun visitNotExpr(ctx: MiniKotlinParser.NotExprContext) =
@@ -84,7 +86,7 @@ class MiniKotlinParserVisitor : MiniKotlinBaseVisitor<MiniKotlinAst.AstNode>() {
         is MiniKotlinParser.IntLiteralContext -> MiniKotlinAst.IntegerLiteral(ctx.text.toInt())
         is MiniKotlinParser.StringLiteralContext -> MiniKotlinAst.StringLiteral(ctx.text.trim('"'))
         is MiniKotlinParser.BoolLiteralContext -> MiniKotlinAst.BooleanLiteral(ctx.text.toBooleanStrict())
-        is MiniKotlinParser.IdentifierExprContext -> MiniKotlinAst.Identifier(ctx.text)
+        is MiniKotlinParser.IdentifierExprContext -> MiniKotlinAst.Identifier(names.intern(ctx.text))
         is MiniKotlinParser.ParenExprContext -> visitExpression(ctx.expression())
         else -> error("Unknown PrimaryContext type: ${ctx.javaClass.simpleName}")
     }
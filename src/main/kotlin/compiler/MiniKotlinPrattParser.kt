@@ -0,0 +1,167 @@
+package compiler
+
+import compiler.MiniKotlinScanner.Kind
+
+/**
+ * Parses MiniKotlin source directly into a [MiniKotlinAst.Program], without ANTLR and without a parse tree.
+ * Statements are parsed by recursive descent and expressions by precedence climbing, and the result is the same
+ * AST that [MiniKotlinParserVisitor] builds from the ANTLR parse tree. Unlike ANTLR, the parser does not recover
+ * from syntax errors, but fails on the first one.
+ */
+class MiniKotlinPrattParser(source: String) {
+    private val scanner = MiniKotlinScanner(source).apply { advance() }
+    private val names = MiniKotlinNames()
+
+    fun parseProgram(): MiniKotlinAst.Program {
+        val functions = mutableListOf<MiniKotlinAst.FunctionDeclaration>()
+        while (scanner.kind != Kind.EOF) functions += parseFunctionDeclaration()
+        return MiniKotlinAst.Program(functions.toList())
+    }
+
+    private fun parseFunctionDeclaration(): MiniKotlinAst.FunctionDeclaration {
+        expect(Kind.FUN)
+        val name = expectName()
+        expect(Kind.LPAREN)
+        val parameters = mutableListOf<MiniKotlinAst.Parameter>()
+        if (scanner.kind != Kind.RPAREN) {
+            do parameters += MiniKotlinAst.Parameter(expectName(), parseTypeAnnotation())
+            while (accept(Kind.COMMA))
+        }
+        expect(Kind.RPAREN)
+        val returnType = parseTypeAnnotation()
+        return MiniKotlinAst.FunctionDeclaration(name, parameters.toList(), returnType, parseBlock())
+    }
+
+    private fun parseTypeAnnotation(): MiniKotlinType {
+        expect(Kind.COLON)
+        val type = when (scanner.kind) {
+            Kind.INT_TYPE -> MiniKotlinType.Int
+            Kind.BOOLEAN_TYPE -> MiniKotlinType.Boolean
+            Kind.STRING_TYPE -> MiniKotlinType.String
+            Kind.UNIT_TYPE -> MiniKotlinType.Unit
+            else -> unexpected("a type")
+        }
+        scanner.advance()
+        return type
+    }
+
+    private fun parseBlock(): MiniKotlinAst.Block {
+        expect(Kind.LBRACE)
+        val statements = mutableListOf<MiniKotlinAst.Statement>()
+        while (!accept(Kind.RBRACE)) statements += parseStatement()
+        return MiniKotlinAst.Block(statements.toList())
+    }
+
+    private fun parseStatement(): MiniKotlinAst.Statement = when (scanner.kind) {
+        Kind.VAR -> {
+            scanner.advance()
+            val name = expectName()
+            val type = parseTypeAnnotation()
+            expect(Kind.ASSIGN)
+            MiniKotlinAst.VariableDeclaration(name, type, parseExpression())
+        }
+
+        Kind.IF -> {
+            scanner.advance()
+            val condition = parseParenthesized()
+            val trueBlock = parseBlock()
+            MiniKotlinAst.If(condition, trueBlock, if (accept(Kind.ELSE)) parseBlock() else null)
+        }
+
+        Kind.WHILE -> {
+            scanner.advance()
+            val condition = parseParenthesized()
+            MiniKotlinAst.While(condition, parseBlock())
+        }
+
+        Kind.RETURN -> {
+            scanner.advance()
+            // Like ANTLR, the optional value is taken whenever it can be, except before an assignment
+            val hasValue = startsExpression() && !(scanner.kind == Kind.IDENTIFIER && scanner.peek() == Kind.ASSIGN)
+            MiniKotlinAst.Return(if (hasValue) parseExpression() else null)
+        }
+
+        Kind.IDENTIFIER if scanner.peek() == Kind.ASSIGN -> {
+            val name = expectName()
+            scanner.advance()
+            MiniKotlinAst.VariableAssignment(MiniKotlinAst.Identifier(name), parseExpression())
+        }
+
+        else -> parseExpression()
+    }
+
+    private fun parseParenthesized(): MiniKotlinAst.Expression {
+        expect(Kind.LPAREN)
+        return parseExpression().also { expect(Kind.RPAREN) }
+    }
+
+    /**
+     * Parses binary operators of at least [minPrecedence]. Operators are left-associative, so the right operand
+     * only takes operators that bind tighter.
+     */
+    private fun parseExpression(minPrecedence: Int = 0): MiniKotlinAst.Expression {
+        var left = parseOperand()
+        while (true) {
+            val operation = scanner.operation ?: break
+            val precedence = operation.precedence
+            if (precedence < minPrecedence) break
+            scanner.advance()
+            left = MiniKotlinAst.BinaryExpression(left, operation, parseExpression(precedence + 1))
+        }
+        return left
+    }
+
+    private fun parseOperand(): MiniKotlinAst.Expression = when (scanner.kind) {
+        Kind.NOT -> {
+            scanner.advance()
+            MiniKotlinAst.Not(parseOperand())
+        }
+
+        Kind.LPAREN -> parseParenthesized()
+        Kind.INTEGER_LITERAL -> MiniKotlinAst.IntegerLiteral(expectText(Kind.INTEGER_LITERAL).toInt())
+        Kind.STRING_LITERAL -> MiniKotlinAst.StringLiteral(expectText(Kind.STRING_LITERAL).trim('"'))
+        Kind.BOOLEAN_LITERAL -> MiniKotlinAst.BooleanLiteral(expectText(Kind.BOOLEAN_LITERAL).toBooleanStrict())
+        Kind.IDENTIFIER -> {
+            val name = expectName()
+            if (accept(Kind.LPAREN)) {
+                val arguments = mutableListOf<MiniKotlinAst.Expression>()
+                if (scanner.kind != Kind.RPAREN) {
+                    do arguments += parseExpression() while (accept(Kind.COMMA))
+                }
+                expect(Kind.RPAREN)
+                MiniKotlinAst.FunctionCall(name, arguments.toList())
+            } else {
+                MiniKotlinAst.Identifier(name)
+            }
+        }
+
+        else -> unexpected("an expression")
+    }
+
+    private fun startsExpression() = when (scanner.kind) {
+        Kind.NOT, Kind.LPAREN, Kind.INTEGER_LITERAL, Kind.STRING_LITERAL, Kind.BOOLEAN_LITERAL, Kind.IDENTIFIER -> true
+        else -> false
+    }
+
+    private fun accept(kind: Kind): Boolean {
+        if (scanner.kind != kind) return false
+        scanner.advance()
+        return true
+    }
+
+    private fun expect(kind: Kind) {
+        if (!accept(kind)) unexpected(kind.name)
+    }
+
+    private fun expectText(kind: Kind): String {
+        if (scanner.kind != kind) unexpected(kind.name)
+        return scanner.text.also { scanner.advance() }
+    }
+
+    private fun expectName() = names.intern(expectText(Kind.IDENTIFIER))
+
+    private fun unexpected(expected: String): Nothing {
+        val found = if (scanner.kind == Kind.EOF) "<EOF>" else "'${scanner.text}'"
+        scanner.fail("mismatched input $found expecting $expected")
+    }
+}
@@ -0,0 +1,158 @@
+package compiler
+
+/**
+ * Splits MiniKotlin source into the tokens of `MiniKotlin.g4`, one at a time and without allocating token objects.
+ * After [advance], [kind] is the kind of the current token, [text] its source text and, for binary operators,
+ * [operation] the operation it denotes. Whitespace and comments are skipped as in the grammar.
+ */
+class MiniKotlinScanner(private val source: String) {
+    enum class Kind {
+        FUN, VAR, IF, ELSE, WHILE, RETURN,
+        INT_TYPE, STRING_TYPE, BOOLEAN_TYPE, UNIT_TYPE,
+        BOOLEAN_LITERAL, INTEGER_LITERAL, STRING_LITERAL,
+        OPERATOR, ASSIGN, NOT,
+        LPAREN, RPAREN, LBRACE, RBRACE, COMMA, COLON,
+        IDENTIFIER, EOF
+    }
+
+    var kind = Kind.EOF
+        private set
+    var operation: MiniKotlinBinaryOperation? = null
+        private set
+    private var start = 0
+    private var end = 0
+
+    val text: String get() = source.substring(start, end)
+
+    fun advance() {
+        skipWhitespaceAndComments()
+        start = end
+        operation = null
+        if (end == source.length) {
+            kind = Kind.EOF
+            return
+        }
+        kind = when (val c = source[end++]) {
+            '(' -> Kind.LPAREN
+            ')' -> Kind.RPAREN
+            '{' -> Kind.LBRACE
+            '}' -> Kind.RBRACE
+            ',' -> Kind.COMMA
+            ':' -> Kind.COLON
+            '*' -> operator(MiniKotlinBinaryOperation.MULT)
+            '/' -> operator(MiniKotlinBinaryOperation.DIV)
+            '%' -> operator(MiniKotlinBinaryOperation.MOD)
+            '+' -> operator(MiniKotlinBinaryOperation.PLUS)
+            '-' -> operator(MiniKotlinBinaryOperation.MINUS)
+            '<' -> operator(if (match('=')) MiniKotlinBinaryOperation.LE else MiniKotlinBinaryOperation.LT)
+            '>' -> operator(if (match('=')) MiniKotlinBinaryOperation.GE else MiniKotlinBinaryOperation.GT)
+            '=' -> if (match('=')) operator(MiniKotlinBinaryOperation.EQ) else Kind.ASSIGN
+            '!' -> if (match('=')) operator(MiniKotlinBinaryOperation.NEQ) else Kind.NOT
+            '&' -> if (match('&')) operator(MiniKotlinBinaryOperation.AND) else fail("Unexpected character '&'")
+            '|' -> if (match('|')) operator(MiniKotlinBinaryOperation.OR) else fail("Unexpected character '|'")
+            '"' -> scanString()
+            in '0'..'9' -> {
+                while (end < source.length && source[end] in '0'..'9') end++
+                Kind.INTEGER_LITERAL
+            }
+
+            else -> if (isIdentifierStart(c)) scanIdentifier() else fail("Unexpected character '$c'")
+        }
+    }
+
+    /**
+     * Returns the kind of the token after the current one, without advancing.
+     */
+    fun peek(): Kind {
+        val kind = kind
+        val operation = operation
+        val start = start
+        val end = end
+        advance()
+        val next = this.kind
+        this.kind = kind
+        this.operation = operation
+        this.start = start
+        this.end = end
+        return next
+    }
+
+    /**
+     * Fails with the line and column of the current token, counted like ANTLR does.
+     */
+    fun fail(message: String): Nothing {
+        val line = 1 + (0 until start).count { source[it] == '\n' }
+        val column = start - (source.lastIndexOf('\n', start - 1) + 1)
+        error("line $line:$column $message")
+    }
+
+    private fun operator(operation: MiniKotlinBinaryOperation): Kind {
+        this.operation = operation
+        return Kind.OPERATOR
+    }
+
+    private fun match(c: Char): Boolean {
+        if (end == source.length || source[end] != c) return false
+        end++
+        return true
+    }
+
+    private fun scanString(): Kind {
+        while (end < source.length && source[end] != '"') {
+            if (source[end] == '\r' || source[end] == '\n') break
+            end++
+        }
+        if (!match('"')) fail("Unterminated string literal")
+        return Kind.STRING_LITERAL
+    }
+
+    private fun scanIdentifier(): Kind {
+        while (end < source.length && isIdentifierPart(source[end])) end++
+        return KEYWORDS[text] ?: Kind.IDENTIFIER
+    }
+
+    private fun skipWhitespaceAndComments() {
+        while (end < source.length) {
+            when (source[end]) {
+                ' ', '\t', '\r', '\n' -> end++
+                '/' -> when {
+                    source.startsWith("//", end) -> {
+                        while (end < source.length && source[end] != '\r' && source[end] != '\n') end++
+                    }
+
+                    source.startsWith("/*", end) -> {
+                        // An unterminated block comment is not a comment, but a division followed by a multiplication
+                        val close = source.indexOf("*/", end + 2)
+                        if (close < 0) return
+                        end = close + 2
+                    }
+
+                    else -> return
+                }
+
+                else -> return
+            }
+        }
+    }
+
+    companion object {
+        private val KEYWORDS = mapOf(
+            "fun" to Kind.FUN,
+            "var" to Kind.VAR,
+            "if" to Kind.IF,
+            "else" to Kind.ELSE,
+            "while" to Kind.WHILE,
+            "return" to Kind.RETURN,
+            "Int" to Kind.INT_TYPE,
+            "String" to Kind.STRING_TYPE,
+            "Boolean" to Kind.BOOLEAN_TYPE,
+            "Unit" to Kind.UNIT_TYPE,
+            "true" to Kind.BOOLEAN_LITERAL,
+            "false" to Kind.BOOLEAN_LITERAL
+        )
+
+        private fun isIdentifierStart(c: Char) = c in 'a'..'z' || c in 'A'..'Z' || c == '_'
+
+        private fun isIdentifierPart(c: Char) = isIdentifierStart(c) || c in '0'..'9'
+    }
+}
@@ -0,0 +1,40 @@
+package compiler
+
+/**
+ * A flat symbol table for nested scopes: one map holds the innermost visible declaration of every name, so a lookup
+ * is a single hash lookup however deep the scopes are nested. Each declaration records the declaration it shadows in
+ * an undo log, and leaving a scope restores the shadowed declarations of the names declared in it.
+ */
+class MiniKotlinScopeTable<T : Any> {
+    private class Declaration<T>(val value: T, val depth: Int)
+
+    private val visible = HashMap<String, Declaration<T>>()
+    private val undoNames = ArrayList<String>()
+    private val undoShadowed = ArrayList<Declaration<T>?>()
+    private var scopeStarts = IntArray(16)
+    private var depth = 0
+
+    fun enterScope() {
+        if (depth == scopeStarts.size) scopeStarts = scopeStarts.copyOf(depth * 2)
+        scopeStarts[depth++] = undoNames.size
+    }
+
+    fun exitScope() {
+        val start = scopeStarts[--depth]
+        for (i in undoNames.lastIndex downTo start) {
+            val shadowed = undoShadowed[i]
+            if (shadowed == null) visible.remove(undoNames[i]) else visible[undoNames[i]] = shadowed
+        }
+        undoNames.subList(start, undoNames.size).clear()
+        undoShadowed.subList(start, undoShadowed.size).clear()
+    }
+
+    operator fun get(name: String): T? = visible[name]?.value
+
+    fun isDeclaredInCurrentScope(name: String) = visible[name]?.depth == depth
+
+    fun declare(name: String, value: T) {
+        undoNames += name
+        undoShadowed += visible.put(name, Declaration(value, depth))
+    }
+}
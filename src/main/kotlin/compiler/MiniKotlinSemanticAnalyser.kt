@@ -1,7 +1,27 @@
 package compiler
 
-class MiniKotlinSemanticAnalyser(var program: MiniKotlinAst.Program) {
-    data class VariableSymbol(val type: MiniKotlinType, val javaName: String, val isParam: Boolean)
+/**
+ * Functions are analysed in parallel, each by its own analyser instance sharing the read-only function table,
+ * so that all other state, including the counters used for Java names, is scoped to a single function.
+ */
+class MiniKotlinSemanticAnalyser private constructor(
+    var program: MiniKotlinAst.Program,
+    private val functionTable: Map<String, FunctionSymbol>
+) {
+    constructor(program: MiniKotlinAst.Program) : this(program, buildFunctionTable(program))
+
+    /**
+     * Besides the declaration, a symbol records how the variable is used by the generated code.
+     * [region] identifies the Java lambda body the variable is declared in: the analyser starts a new region
+     * wherever the CPS codegen may continue inside a new lambda. A variable is [isCaptured] when it is used
+     * outside its region, and only variables that are both captured and [isMutated] need a heap cell.
+     */
+    data class VariableSymbol(val type: MiniKotlinType, val javaName: String, val isParam: Boolean, val region: Int) {
+        var isMutated = false
+        var isCaptured = false
+
+        val needsCell get() = isMutated && isCaptured
+    }
 
     sealed interface FunctionSymbol {
         val name: String
@@ -22,28 +42,28 @@ class MiniKotlinSemanticAnalyser(var program: MiniKotlinAst.Program) {
         override val returnType: MiniKotlinType,
     ) : FunctionSymbol
 
-    private val symtable = ArrayDeque<MutableMap<String, VariableSymbol>>()
-    private val functionTable = mutableMapOf<String, FunctionSymbol>()
+    private val symtable = MiniKotlinScopeTable<VariableSymbol>()
     private var currentReturnType: MiniKotlinType = MiniKotlinType.Unit
     private var varCounter = 0
 
-    init {
-        functionTable["println"] = BuiltinFunction(
-            "Prelude.println", listOf(
-                MiniKotlinAst.Parameter(
-                    "value", MiniKotlinType.Any
-                )
-            ), MiniKotlinType.Unit
-        )
-        program.functionDeclaration.forEach { (name, parameterList, returnType, block) ->
-            functionTable[name] = UserDefinedFunction(name, parameterList, returnType, block)
-        }
+    // Capture analysis state, see VariableSymbol
+    private var region = 0
+    private var regionCounter = 0
+    private var isLambdaFree = false
+    private val pendingUses = mutableListOf<VariableSymbol>()
+
+    private fun lookupVariable(name: String): VariableSymbol? = symtable[name]
+
+    /**
+     * Throws the error of the first invalid function in declaration order, like a sequential analysis would.
+     */
+    fun analyse() {
+        val errors = program.functionDeclaration.parallelStream()
+            .map { runCatching { MiniKotlinSemanticAnalyser(program, functionTable).analyseFunctionDeclaration(it) }.exceptionOrNull() }
+            .toList()
+        errors.firstNotNullOfOrNull { it }?.let { throw it }
     }
 
-    private fun lookupVariable(name: String): VariableSymbol? = symtable.firstNotNullOfOrNull { it[name] }
-
-    fun analyse() = program.functionDeclaration.forEach(::analyseFunctionDeclaration)
-
     private fun analyseFunctionDeclaration(functionDeclaration: MiniKotlinAst.FunctionDeclaration) =
         with(functionDeclaration) {
             val isMain = name == "main"
@@ -52,25 +72,27 @@ class MiniKotlinSemanticAnalyser(var program: MiniKotlinAst.Program) {
             if (returnType != MiniKotlinType.Unit && !alwaysReturns(block)) error("Missing return statement in function '$name'")
 
             currentReturnType = returnType
-            symtable.addFirst(mutableMapOf())
+            isLambdaFree = isDirect
+            region = ++regionCounter
+            symtable.enterScope()
             parameterList.forEach(::analyseParameter)
             analyseBlock(block)
-            symtable.removeFirst()
+            symtable.exitScope()
         }
 
     private fun analyseParameter(parameter: MiniKotlinAst.Parameter) = with(parameter) {
-        symtable.first()[name] = VariableSymbol(type, name, true)
+        symtable.declare(name, VariableSymbol(type, name, true, region))
     }
 
     private fun analyseBlock(block: MiniKotlinAst.Block) {
-        symtable.addFirst(mutableMapOf())
+        symtable.enterScope()
         block.statements.forEach(::analyseStatement)
-        symtable.removeFirst()
+        symtable.exitScope()
     }
 
     private fun analyseStatement(statement: MiniKotlinAst.Statement) {
         when (statement) {
-            is MiniKotlinAst.Expression -> analyseExpression(statement)
+            is MiniKotlinAst.Expression -> analyseTopLevelExpression(statement)
             is MiniKotlinAst.If -> analyseIf(statement)
             is MiniKotlinAst.Return -> analyseReturn(statement)
             is MiniKotlinAst.VariableAssignment -> analyseVariableAssignment(statement)
@@ -81,7 +103,7 @@ class MiniKotlinSemanticAnalyser(var program: MiniKotlinAst.Program) {
 
     private fun analyseReturn(statement: MiniKotlinAst.Return) {
         statement.value?.let { value ->
-            analyseExpression(value)
+            analyseTopLevelExpression(value)
             if (value.resolvedType != currentReturnType) error("Return type mismatch: expected ${currentReturnType}, got ${value.resolvedType!!}")
         }
             ?: if (currentReturnType != MiniKotlinType.Unit) error("Return type mismatch: expected ${currentReturnType}, got Unit") else {
@@ -89,78 +111,180 @@ class MiniKotlinSemanticAnalyser(var program: MiniKotlinAst.Program) {
     }
 
     private fun analyseIf(ifStatement: MiniKotlinAst.If) = with(ifStatement) {
-        analyseExpression(condition)
+        analyseTopLevelExpression(condition)
         if (condition.resolvedType != MiniKotlinType.Boolean) error("If condition type mismatch: Expected 'Boolean', got '${condition.resolvedType}'")
+        val conditionRegion = region
         analyseBlock(trueBlock)
+        region = conditionRegion
         falseBlock?.let(::analyseBlock)
+        enterLambda()
     }
 
     private fun analyseVariableAssignment(variableAssignment: MiniKotlinAst.VariableAssignment) =
         with(variableAssignment) {
-            analyseIdentifier(identifier)
+            val variable = resolveIdentifier(identifier)
             if (identifier.isParam) error("Cannot assign value to parameter ${identifier.name}")
 
-            analyseExpression(value)
+            analyseTopLevelExpression(value)
             if (identifier.resolvedType != value.resolvedType) error("Type mismatch in assignment to variable ${identifier.name}")
+            variable.isMutated = true
+            recordUse(variable)
         }
 
     private fun analyseVariableDeclaration(variableDeclaration: MiniKotlinAst.VariableDeclaration) =
         with(variableDeclaration) {
-            if (name in symtable.first()) error("Variable redeclaration in the same scope of variable '$name'")
-            analyseExpression(value)
+            if (symtable.isDeclaredInCurrentScope(name)) error("Variable redeclaration in the same scope of variable '$name'")
+            analyseTopLevelExpression(value)
             if (value.resolvedType != type) error("Type mismatch in variable declaration of variable $name")
-            javaName = "${name}_${varCounter++}"
-            symtable.first()[name] = VariableSymbol(type, javaName, false)
+            symbol = VariableSymbol(type, "${name}_${varCounter++}", false, region)
+            symtable.declare(name, symbol!!)
         }
 
+    /**
+     * Direct loops are compiled to native Java loops, which create no lambdas.
+     */
     private fun analyseWhile(whileStatement: MiniKotlinAst.While) = with(whileStatement) {
-        analyseExpression(condition)
+        val wasLambdaFree = isLambdaFree
+        isLambdaFree = isLambdaFree || isDirect
+        enterLambda()
+        analyseTopLevelExpression(condition)
         if (condition.resolvedType != MiniKotlinType.Boolean) error("While condition type mismatch: Expected 'Boolean', got '${condition.resolvedType}'")
         analyseBlock(block)
+        enterLambda()
+        isLambdaFree = wasLambdaFree
+    }
+
+    /**
+     * The codegen passes operand strings on through continuations, so a variable read may only be emitted after the
+     * calls evaluated later in the same expression. Reads are therefore also recorded in the region where their
+     * operand is consumed: before the lambda of the enclosing continuation call, or at the end of the expression.
+     */
+    private fun analyseTopLevelExpression(expression: MiniKotlinAst.Expression) {
+        analyseExpression(expression)
+        recordPendingUses(0)
+    }
+
+    private fun recordPendingUses(from: Int) {
+        val uses = pendingUses.subList(from, pendingUses.size)
+        uses.forEach(::recordUse)
+        uses.clear()
+    }
+
+    /**
+     * The operands of [expression] that are analysed next are tracked by [operandIndex], and uses recorded from
+     * [firstUse] on belong to the expression, see [recordPendingUses].
+     */
+    private class ExpressionFrame(
+        val expression: MiniKotlinAst.Expression,
+        val firstUse: Int,
+        val function: FunctionSymbol? = null
+    ) {
+        var operandIndex = 0
     }
 
+    /**
+     * Expressions are analysed on an explicit stack of frames rather than the JVM stack, so that long operator chains
+     * cannot overflow it. Each expression is checked before and after its operands, like a recursive analysis would.
+     */
     private fun analyseExpression(expression: MiniKotlinAst.Expression) {
+        val stack = ArrayDeque<ExpressionFrame>()
+        enterExpression(expression, stack)
+        while (stack.isNotEmpty()) {
+            val operand = nextOperand(stack.last())
+            if (operand != null) enterExpression(operand, stack) else exitExpression(stack.removeLast())
+        }
+    }
+
+    private fun enterExpression(expression: MiniKotlinAst.Expression, stack: ArrayDeque<ExpressionFrame>) {
         when (expression) {
-            is MiniKotlinAst.FunctionCall -> analyseFunctionCall(expression)
+            is MiniKotlinAst.FunctionCall -> stack += ExpressionFrame(expression, pendingUses.size, resolveFunction(expression))
             is MiniKotlinAst.Identifier -> analyseIdentifier(expression)
-            is MiniKotlinAst.BinaryExpression -> analyseBinaryExpression(expression)
-            is MiniKotlinAst.Not -> analyseNot(expression)
-            is MiniKotlinAst.IntegerLiteral -> expression.resolvedType = MiniKotlinType.Int
-            is MiniKotlinAst.BooleanLiteral -> expression.resolvedType = MiniKotlinType.Boolean
-            is MiniKotlinAst.StringLiteral -> expression.resolvedType = MiniKotlinType.String
+            is MiniKotlinAst.BinaryExpression, is MiniKotlinAst.Not -> stack += ExpressionFrame(expression, pendingUses.size)
+            is MiniKotlinAst.IntegerLiteral, is MiniKotlinAst.BooleanLiteral, is MiniKotlinAst.StringLiteral -> {}
+        }
+    }
+
+    /**
+     * Arguments are checked against their parameter right after they are analysed.
+     */
+    private fun nextOperand(frame: ExpressionFrame): MiniKotlinAst.Expression? = with(frame) {
+        val index = operandIndex++
+        when (expression) {
+            is MiniKotlinAst.FunctionCall -> {
+                val parameterList = function!!.parameterList
+                if (index > 0) checkArgument(function, expression.argumentList[index - 1], parameterList[index - 1])
+                expression.argumentList.getOrNull(index)?.takeIf { index < parameterList.size }
+            }
+
+            else -> expression.operands.getOrNull(index)
+        }
+    }
+
+    private fun exitExpression(frame: ExpressionFrame) = with(frame) {
+        when (expression) {
+            is MiniKotlinAst.FunctionCall -> exitFunctionCall(expression, function!!, firstUse)
+            is MiniKotlinAst.BinaryExpression -> exitBinaryExpression(expression, firstUse)
+            is MiniKotlinAst.Not -> exitNot(expression)
+            is MiniKotlinAst.Identifier, is MiniKotlinAst.IntegerLiteral, is MiniKotlinAst.BooleanLiteral, is MiniKotlinAst.StringLiteral -> {}
         }
     }
 
-    private fun analyseNot(expression: MiniKotlinAst.Not) = with(expression) {
-        analyseExpression(value)
+    private fun exitNot(expression: MiniKotlinAst.Not) = with(expression) {
         if (value.resolvedType != MiniKotlinType.Boolean) error("Invalid type for not expression: ${value.resolvedType}")
-        expression.resolvedType = MiniKotlinType.Boolean
     }
 
-    private fun analyseFunctionCall(functionCall: MiniKotlinAst.FunctionCall) {
+    private fun resolveFunction(functionCall: MiniKotlinAst.FunctionCall): FunctionSymbol {
         if (functionCall.name == "main")
             error("Main function calls forbidden.")
         val function = functionTable[functionCall.name] ?: error("Called function not found: ${functionCall.name}")
         functionCall.name = function.name
-        for ((arg, param) in functionCall.argumentList.zip(function.parameterList)) {
-            analyseExpression(arg)
-            if (!(param.type accepts arg.resolvedType!!)) {
-                error("Wrong parameter type for parameter '${param.name}' in function '${function.name}'")
-            }
+        return function
+    }
+
+    private fun checkArgument(function: FunctionSymbol, arg: MiniKotlinAst.Expression, param: MiniKotlinAst.Parameter) {
+        if (!(param.type accepts arg.resolvedType!!)) {
+            error("Wrong parameter type for parameter '${param.name}' in function '${function.name}'")
         }
+    }
+
+    private fun exitFunctionCall(functionCall: MiniKotlinAst.FunctionCall, function: FunctionSymbol, firstUse: Int) {
         functionCall.resolvedType = function.returnType
+        if (!functionCall.isDirect) {
+            recordPendingUses(firstUse)
+            enterLambda()
+        }
+    }
+
+    private fun analyseIdentifier(identifier: MiniKotlinAst.Identifier) {
+        val variable = resolveIdentifier(identifier)
+        recordUse(variable)
+        pendingUses += variable
     }
 
-    private fun analyseIdentifier(identifier: MiniKotlinAst.Identifier) = with(identifier) {
+    private fun resolveIdentifier(identifier: MiniKotlinAst.Identifier) = with(identifier) {
         val variable = lookupVariable(name) ?: error("Variable not found: $name")
-        resolvedType = variable.type
-        javaName = variable.javaName
-        isParam = variable.isParam
+        symbol = variable
+        variable
+    }
+
+    private fun recordUse(variable: VariableSymbol) {
+        if (variable.region != region) variable.isCaptured = true
+    }
+
+    /**
+     * Called wherever the CPS codegen may continue the rest of the function inside a new lambda.
+     * Direct-style functions never create lambdas.
+     */
+    private fun enterLambda() {
+        if (!isLambdaFree) region = ++regionCounter
     }
 
-    private fun analyseBinaryExpression(binaryExpression: MiniKotlinAst.BinaryExpression) {
-        analyseExpression(binaryExpression.left)
-        analyseExpression(binaryExpression.right)
+    private fun exitBinaryExpression(binaryExpression: MiniKotlinAst.BinaryExpression, firstUse: Int) {
+        val isShortCircuit = binaryExpression.operation == MiniKotlinBinaryOperation.AND || binaryExpression.operation == MiniKotlinBinaryOperation.OR
+        if (isShortCircuit && !binaryExpression.isDirect) {
+            recordPendingUses(firstUse)
+            enterLambda()
+        }
         val leftType = binaryExpression.left.resolvedType
         val rightType = binaryExpression.right.resolvedType
 
@@ -193,15 +317,32 @@ class MiniKotlinSemanticAnalyser(var program: MiniKotlinAst.Program) {
         } ?: error("Invalid types for binary expression: $leftType ${binaryExpression.operation} $rightType")
     }
 
-    // Definite return analysis helpers
+    companion object {
+        private fun buildFunctionTable(program: MiniKotlinAst.Program): Map<String, FunctionSymbol> {
+            val functionTable = mutableMapOf<String, FunctionSymbol>()
+            functionTable["println"] = BuiltinFunction(
+                "Prelude.println", listOf(
+                    MiniKotlinAst.Parameter(
+                        "value", MiniKotlinType.Any
+                    )
+                ), MiniKotlinType.Unit
+            )
+            program.functionDeclaration.forEach { (name, parameterList, returnType, block) ->
+                functionTable[name] = UserDefinedFunction(name, parameterList, returnType, block)
+            }
+            return functionTable
+        }
 
-    private fun alwaysReturns(block: MiniKotlinAst.Block): Boolean = block.statements.any(::alwaysReturns)
+        // Definite return analysis helpers
 
-    private fun alwaysReturns(statement: MiniKotlinAst.Statement) = with(statement) {
-        when (this) {
-            is MiniKotlinAst.If -> alwaysReturns(trueBlock) && falseBlock?.let(::alwaysReturns) ?: false
-            is MiniKotlinAst.Return -> true
-            is MiniKotlinAst.Expression, is MiniKotlinAst.VariableAssignment, is MiniKotlinAst.VariableDeclaration, is MiniKotlinAst.While -> false
+        fun alwaysReturns(block: MiniKotlinAst.Block): Boolean = block.statements.any(::alwaysReturns)
+
+        fun alwaysReturns(statement: MiniKotlinAst.Statement) = with(statement) {
+            when (this) {
+                is MiniKotlinAst.If -> alwaysReturns(trueBlock) && falseBlock?.let(::alwaysReturns) ?: false
+                is MiniKotlinAst.Return -> true
+                is MiniKotlinAst.Expression, is MiniKotlinAst.VariableAssignment, is MiniKotlinAst.VariableDeclaration, is MiniKotlinAst.While -> false
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package compiler
+
+/**
+ * Where the generated code keeps the continuations of pending calls.
+ */
+enum class MiniKotlinStackMode {
+    /**
+     * Continuations are lambdas called directly, so each pending call also occupies Java stack frames, and functions
+     * that never need a continuation are compiled to plain Java methods.
+     */
+    JAVA,
+
+    /**
+     * Function bodies and continuations run as frames of the `Dispatcher` loop of the stdlib, so the depth of
+     * recursion is limited by the heap instead of the Java stack. All functions use continuations in this mode.
+     */
+    HEAP
+}
@@ -0,0 +1,73 @@
+package org.example.compiler
+
+import compiler.MiniKotlinCompiler
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Compiles many MiniKotlin programs at once: parsing, analysis and code generation run on a thread pool, and all
+ * generated sources are passed to javac together, so that javac starts and loads its symbols once per batch.
+ */
+class BatchCompiler(
+    private val stdlibPath: Path? = null,
+    private val threads: Int = Runtime.getRuntime().availableProcessors(),
+    private val frontend: MiniKotlinFrontend = MiniKotlinFrontend.ANTLR
+) {
+    private val javaCompiler = JavaRuntimeCompiler()
+
+    /**
+     * Returns a result for every input, in input order. Each program is compiled to its own class, named after its
+     * file, and errors are reported for the input they belong to. Since results are keyed by input, the same file
+     * must not be given twice, also not through different paths; this throws an [IllegalArgumentException].
+     */
+    fun compile(inputs: List<Path>): Map<Path, CompilationResult> {
+        val duplicates = inputs.groupBy { it.toAbsolutePath().normalize() }.filterValues { it.size > 1 }.values
+        require(duplicates.isEmpty()) { "Duplicate inputs: ${duplicates.joinToString { it.joinToString(" = ") }}" }
+        val classNames = classNames(inputs)
+
+        val executor = Executors.newFixedThreadPool(threads)
+        val frontend = try {
+            inputs.map { input -> executor.submit(Callable { generate(input, classNames.getValue(input)) }) }
+                .map { future ->
+                    try {
+                        Result.success(future.get())
+                    } catch (e: ExecutionException) {
+                        Result.failure(e.cause ?: e)
+                    }
+                }
+        } finally {
+            executor.shutdown()
+        }
+
+        val sources = inputs.zip(frontend)
+            .mapNotNull { (input, result) -> result.getOrNull()?.let { classNames.getValue(input) to it } }
+            .toMap()
+        val javacResults = javaCompiler.compileAll(sources, stdlibPath)
+
+        return inputs.zip(frontend).associate { (input, result) ->
+            input to result.fold(
+                onSuccess = { javacResults.getValue(classNames.getValue(input)) },
+                onFailure = { CompilationResult.Failure(listOf(CompilationError(0, 0, it.message ?: it.toString()))) }
+            )
+        }
+    }
+
+    private fun generate(input: Path, className: String): String {
+        return MiniKotlinCompiler().compile(frontend.parse(Files.readString(input)), className)
+    }
+
+    /**
+     * Derives a unique Java class name from each file name. The prefix keeps programs from shadowing stdlib classes.
+     */
+    private fun classNames(inputs: List<Path>): Map<Path, String> {
+        val used = mutableSetOf<String>()
+        return inputs.associateWith { input ->
+            val base = "MiniProgram_" + input.fileName.toString().removeSuffix(".mini")
+                .map { if (it.isLetterOrDigit() || it == '_') it else '_' }.joinToString("")
+            generateSequence(1) { it + 1 }.map { if (it == 1) base else "${base}_$it" }.first { used.add(it) }
+        }
+    }
+}
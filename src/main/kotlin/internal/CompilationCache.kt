@@ -0,0 +1,105 @@
+package org.example.compiler
+
+import compiler.MiniKotlinCompiler
+import java.nio.file.FileSystemException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.isDirectory
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.io.path.readBytes
+
+/**
+ * Caches compiled MiniKotlin programs under a SHA-256 hash of the compiler version, the class name and the source.
+ *
+ * Loaded classes are kept in an in-memory LRU of at most [capacity] programs. With a [directory], the class bytes
+ * are also stored on disk, so that other cache instances and processes load them without parsing, analysis, code
+ * generation or javac. Failed compilations are not cached.
+ */
+class CompilationCache(
+    private val directory: Path? = null,
+    private val capacity: Int = 64,
+    private val stdlibPath: Path? = null,
+    private val frontend: MiniKotlinFrontend = MiniKotlinFrontend.ANTLR
+) {
+    data class Statistics(val hits: Long, val diskHits: Long, val misses: Long, val evictions: Long)
+
+    private val hits = AtomicLong()
+    private val diskHits = AtomicLong()
+    private val misses = AtomicLong()
+    private val evictions = AtomicLong()
+
+    private val javaCompiler = JavaRuntimeCompiler()
+
+    private val loaded = object : LinkedHashMap<String, CompilationResult.Success>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CompilationResult.Success>) =
+            (size > capacity).also { if (it) evictions.incrementAndGet() }
+    }
+
+    val statistics get() = Statistics(hits.get(), diskHits.get(), misses.get(), evictions.get())
+
+    /**
+     * Returns the compiled program for [source], running the whole pipeline only on a cache miss.
+     * Semantic errors are thrown by [MiniKotlinCompiler] as before.
+     */
+    fun compile(source: String, className: String = "MiniProgram"): CompilationResult {
+        val key = key(source, className)
+
+        synchronized(loaded) { loaded[key] }?.let {
+            hits.incrementAndGet()
+            return it
+        }
+
+        readClassBytes(key)?.let { classBytes ->
+            diskHits.incrementAndGet()
+            return remember(key, javaCompiler.load(className, classBytes, stdlibPath))
+        }
+
+        misses.incrementAndGet()
+        val javaCode = MiniKotlinCompiler().compile(frontend.parse(source), className)
+
+        val result = javaCompiler.compile(javaCode, stdlibPath)
+        if (result is CompilationResult.Success) {
+            writeClassBytes(key, result.classBytes)
+            remember(key, result)
+        }
+        return result
+    }
+
+    private fun remember(key: String, result: CompilationResult.Success) =
+        result.also { synchronized(loaded) { loaded[key] = it } }
+
+    private fun key(source: String, className: String): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("${MiniKotlinCompiler.VERSION}\u0000$className\u0000".toByteArray())
+        digest.update(source.toByteArray())
+        return HexFormat.of().formatHex(digest.digest())
+    }
+
+    private fun readClassBytes(key: String): Map<String, ByteArray>? {
+        val entry = directory?.resolve(key)?.takeIf { it.isDirectory() } ?: return null
+        return entry.listDirectoryEntries("*.class").associate { it.name.removeSuffix(".class") to it.readBytes() }
+    }
+
+    /**
+     * Entries are written to a temporary directory first and then moved into place, so that concurrent readers
+     * never see a partially written entry.
+     */
+    private fun writeClassBytes(key: String, classBytes: Map<String, ByteArray>) {
+        if (directory == null) return
+        Files.createDirectories(directory)
+        val temporary = Files.createTempDirectory(directory, "$key.")
+        classBytes.forEach { (name, bytes) -> Files.write(temporary.resolve("$name.class"), bytes) }
+        try {
+            Files.move(temporary, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: FileSystemException) {
+            // Another writer stored the same entry first
+            temporary.listDirectoryEntries().forEach(Files::delete)
+            Files.delete(temporary)
+        }
+    }
+}
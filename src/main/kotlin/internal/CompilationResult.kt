@@ -4,7 +4,8 @@ sealed class CompilationResult {
     data class Success(
         val className: String,
         val classLoader: ClassLoader,
-        val compiledClass: Class<*>
+        val compiledClass: Class<*>,
+        val classBytes: Map<String, ByteArray> = emptyMap()
     ) : CompilationResult()
 
     data class Failure(
@@ -0,0 +1,150 @@
+package org.example.compiler
+
+import java.net.StandardProtocolFamily
+import java.net.UnixDomainSocketAddress
+import java.nio.channels.Channels
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.concurrent.thread
+
+/**
+ * Serves compile and run requests over a Unix domain socket, keeping the ANTLR parser, the MiniKotlin compiler,
+ * javac and its file manager warm in one JVM.
+ *
+ * A request is a command line followed by the MiniKotlin source, terminated by the client shutting down its output.
+ * The response is a status line, `ok` or `error`, followed by the output. The commands are:
+ * - `compile`: compiles the source and reports the errors, if any
+ * - `run`: compiles and runs the source and returns its standard output
+ * - `status`: reports the warm-up state, the number of requests served and the cache statistics
+ * - `stop`: shuts the daemon down
+ *
+ * Requests are handled one at a time, because programs are run with a redirected `System.out`.
+ */
+class CompileDaemon(
+    private val socketPath: Path,
+    stdlibPath: Path? = null,
+    cacheDirectory: Path? = null,
+    private val frontend: MiniKotlinFrontend = MiniKotlinFrontend.ANTLR
+) {
+    private val cache = CompilationCache(cacheDirectory, stdlibPath = stdlibPath, frontend = frontend)
+    private val javaCompiler = JavaRuntimeCompiler()
+    private val lock = Any()
+
+    @Volatile
+    private var warmUpMillis: Long? = null
+    private var requests = 0
+    private var running = true
+
+    /**
+     * Serves requests until a `stop` request arrives. [onListening] is called once clients can connect.
+     */
+    fun serve(onListening: () -> Unit = {}) {
+        Files.deleteIfExists(socketPath)
+        ServerSocketChannel.open(StandardProtocolFamily.UNIX).use { server ->
+            server.bind(UnixDomainSocketAddress.of(socketPath))
+            thread(isDaemon = true, name = "minikotlin-warm-up") { warmUp() }
+            onListening()
+            try {
+                while (running) server.accept().use(::handle)
+            } finally {
+                Files.deleteIfExists(socketPath)
+            }
+        }
+    }
+
+    /**
+     * Fills the shared parser DFA, then compiles and runs a small program, so that the first request does not pay
+     * for class loading and JIT warm-up of the whole pipeline.
+     */
+    private fun warmUp() {
+        val start = System.nanoTime()
+        if (frontend == MiniKotlinFrontend.ANTLR) MiniKotlinParsing.warmUp()
+        synchronized(lock) { run(WARM_UP_PROGRAM) }
+        warmUpMillis = (System.nanoTime() - start) / 1_000_000
+    }
+
+    private fun handle(channel: SocketChannel) {
+        val request = Channels.newInputStream(channel).readBytes().decodeToString()
+        val command = request.substringBefore('\n').trim()
+        val source = request.substringAfter('\n', "")
+
+        val (ok, output) = try {
+            synchronized(lock) {
+                requests++
+                execute(command, source)
+            }
+        } catch (e: Exception) {
+            false to "${e.message ?: e}\n"
+        }
+
+        Channels.newOutputStream(channel).write("${if (ok) "ok" else "error"}\n$output".encodeToByteArray())
+    }
+
+    private fun execute(command: String, source: String): Pair<Boolean, String> = when (command) {
+        "compile" -> when (val result = cache.compile(source)) {
+            is CompilationResult.Success -> true to "Compiled ${result.className}\n"
+            is CompilationResult.Failure -> false to formatErrors(result)
+        }
+
+        "run" -> run(source)
+        "status" -> true to status()
+        "stop" -> {
+            running = false
+            true to "Stopping\n"
+        }
+
+        else -> false to "Unknown command '$command'\n"
+    }
+
+    private fun run(source: String): Pair<Boolean, String> = when (val result = cache.compile(source)) {
+        is CompilationResult.Success -> when (val execution = javaCompiler.execute(result)) {
+            is ExecutionResult.Success -> true to execution.stdout
+            is ExecutionResult.Failure -> false to "Execution error: ${execution.error}\n"
+        }
+
+        is CompilationResult.Failure -> false to formatErrors(result)
+    }
+
+    private fun formatErrors(result: CompilationResult.Failure) =
+        result.errors.joinToString("") { "${it.line}:${it.column}: ${it.message}\n" }
+
+    private fun status(): String {
+        val warmUp = warmUpMillis?.let { "done in $it ms" } ?: "in progress"
+        return "warm-up: $warmUp\nrequests: $requests\ncache: ${cache.statistics}\n"
+    }
+
+    companion object {
+        private const val WARM_UP_PROGRAM = """
+            fun square(n: Int): Int {
+                return n * n
+            }
+
+            fun main(): Unit {
+                var i: Int = 0
+                while (i < 3 && square(i) < 10) {
+                    i = i + 1
+                }
+                if (i > 0 || false) {
+                    println("warm " + square(i))
+                }
+            }
+        """
+    }
+}
+
+/**
+ * Sends requests to a [CompileDaemon], one connection per request.
+ */
+class CompileDaemonClient(private val socketPath: Path) {
+    data class Response(val ok: Boolean, val output: String)
+
+    fun send(command: String, source: String = ""): Response =
+        SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).use { channel ->
+            Channels.newOutputStream(channel).write("$command\n$source".encodeToByteArray())
+            channel.shutdownOutput()
+            val response = Channels.newInputStream(channel).readBytes().decodeToString()
+            Response(response.substringBefore('\n') == "ok", response.substringAfter('\n', ""))
+        }
+}
@@ -0,0 +1,63 @@
+package org.example.compiler
+
+import java.io.ByteArrayOutputStream
+import java.net.URI
+import javax.tools.FileObject
+import javax.tools.ForwardingJavaFileManager
+import javax.tools.JavaFileManager
+import javax.tools.JavaFileObject
+import javax.tools.SimpleJavaFileObject
+import javax.tools.StandardJavaFileManager
+
+/**
+ * A Java source file whose content is held in memory.
+ */
+class StringJavaSource(val className: String, private val code: String) :
+    SimpleJavaFileObject(URI.create("string:///${className.replace('.', '/')}${JavaFileObject.Kind.SOURCE.extension}"), JavaFileObject.Kind.SOURCE) {
+    override fun getCharContent(ignoreEncodingErrors: Boolean): CharSequence = code
+}
+
+/**
+ * A class file written by javac into a byte array.
+ */
+class ByteArrayJavaClass(val className: String) :
+    SimpleJavaFileObject(URI.create("bytes:///${className.replace('.', '/')}${JavaFileObject.Kind.CLASS.extension}"), JavaFileObject.Kind.CLASS) {
+    private val bytes = ByteArrayOutputStream()
+
+    override fun openOutputStream() = bytes
+
+    fun toByteArray(): ByteArray = bytes.toByteArray()
+}
+
+/**
+ * Reads sources and classpath entries through [fileManager], but keeps all compiled classes in memory.
+ * Closing it leaves [fileManager] open, so that it can be reused by later compilations.
+ */
+class InMemoryFileManager(fileManager: StandardJavaFileManager) :
+    ForwardingJavaFileManager<StandardJavaFileManager>(fileManager) {
+    private val outputs = mutableListOf<ByteArrayJavaClass>()
+
+    val classBytes: Map<String, ByteArray> get() = outputs.associate { it.className to it.toByteArray() }
+
+    override fun getJavaFileForOutput(
+        location: JavaFileManager.Location,
+        className: String,
+        kind: JavaFileObject.Kind,
+        sibling: FileObject?
+    ): JavaFileObject {
+        if (kind != JavaFileObject.Kind.CLASS) return super.getJavaFileForOutput(location, className, kind, sibling)
+        return ByteArrayJavaClass(className).also { outputs += it }
+    }
+
+    override fun close() = flush()
+}
+
+/**
+ * Defines classes from the bytes produced by an [InMemoryFileManager].
+ */
+class MemoryClassLoader(private val classBytes: Map<String, ByteArray>, parent: ClassLoader) : ClassLoader(parent) {
+    override fun findClass(name: String): Class<*> {
+        val bytes = classBytes[name] ?: throw ClassNotFoundException(name)
+        return defineClass(name, bytes, 0, bytes.size)
+    }
+}
@@ -7,10 +7,19 @@ import java.nio.file.Files
 import java.nio.file.Path
 import javax.tools.Diagnostic
 import javax.tools.DiagnosticCollector
+import javax.tools.JavaCompiler
 import javax.tools.JavaFileObject
+import javax.tools.StandardJavaFileManager
+import javax.tools.StandardLocation
 import javax.tools.ToolProvider
 
 class JavaRuntimeCompiler {
+    /**
+     * Reused by in-memory compilations, so that the JDK modules and the classpath are only opened once.
+     */
+    private val standardFileManager by lazy {
+        ToolProvider.getSystemJavaCompiler()?.getStandardFileManager(null, null, null)
+    }
 
     fun compile(sourceFile: Path, stdlibPath: Path? = null): CompilationResult {
         val compiler = ToolProvider.getSystemJavaCompiler()
@@ -21,8 +30,7 @@ class JavaRuntimeCompiler {
         val diagnostics = DiagnosticCollector<JavaFileObject>()
         val fileManager = compiler.getStandardFileManager(diagnostics, null, null)
 
-        val sourceContent = Files.readString(sourceFile)
-        val className = extractClassName(sourceContent, sourceFile.fileName.toString())
+        val className = extractClassName(readHead(sourceFile), sourceFile.fileName.toString())
 
         val outputDir = Files.createTempDirectory("compiled_classes")
 
@@ -45,18 +53,7 @@ class JavaRuntimeCompiler {
         val success = task.call()
         fileManager.close()
 
-        if (!success) {
-            val errors = diagnostics.diagnostics
-                .filter { it.kind == Diagnostic.Kind.ERROR }
-                .map { diagnostic ->
-                    CompilationError(
-                        line = diagnostic.lineNumber,
-                        column = diagnostic.columnNumber,
-                        message = diagnostic.getMessage(null)
-                    )
-                }
-            return CompilationResult.Failure(errors)
-        }
+        if (!success) return CompilationResult.Failure(collectErrors(diagnostics))
 
         val urls = mutableListOf(outputDir.toUri().toURL())
         if (stdlibPath != null && Files.exists(stdlibPath)) {
@@ -73,6 +70,131 @@ class JavaRuntimeCompiler {
         )
     }
 
+    /**
+     * Compiles [sourceCode] without touching the filesystem: the source is read from memory, the class files are
+     * kept in byte arrays and loaded by a [MemoryClassLoader].
+     */
+    fun compile(sourceCode: String, stdlibPath: Path? = null): CompilationResult {
+        val compiler = ToolProvider.getSystemJavaCompiler()
+        val standardFileManager = standardFileManager
+        if (compiler == null || standardFileManager == null) {
+            return CompilationResult.Failure(
+                listOf(CompilationError(0, 0, "Java compiler not available. Ensure JDK is installed."))
+            )
+        }
+
+        val diagnostics = DiagnosticCollector<JavaFileObject>()
+        val fileManager = InMemoryFileManager(standardFileManager)
+
+        val className = extractClassName(sourceCode, "MiniProgram.java")
+
+        val success = call(compiler, standardFileManager, fileManager, diagnostics, listOf(StringJavaSource(className, sourceCode)), stdlibPath)
+        fileManager.close()
+
+        if (!success) return CompilationResult.Failure(collectErrors(diagnostics))
+
+        return load(className, fileManager.classBytes, stdlibPath)
+    }
+
+    /**
+     * Creates and runs a javac task on the shared [standardFileManager], which is not thread-safe. Creating the task
+     * already configures the file manager, so both happen under its lock. The classpath is set for every task,
+     * because it is state of the file manager that would otherwise leak from one task into the next.
+     */
+    private fun call(
+        compiler: JavaCompiler,
+        standardFileManager: StandardJavaFileManager,
+        fileManager: InMemoryFileManager,
+        diagnostics: DiagnosticCollector<JavaFileObject>,
+        sources: List<StringJavaSource>,
+        stdlibPath: Path?
+    ): Boolean = synchronized(standardFileManager) {
+        // null restores the default classpath
+        val classPath = stdlibPath?.takeIf { Files.exists(it) }?.let { listOf(it.toFile()) }
+        standardFileManager.setLocation(StandardLocation.CLASS_PATH, classPath)
+        compiler.getTask(null, fileManager, diagnostics, null, null, sources).call()
+    }
+
+    /**
+     * Compiles many sources, keyed by their class name, in as few javac tasks as possible.
+     *
+     * javac generates no class files once any source has an error, so the sources with errors are reported as
+     * failures and the rest is compiled again.
+     */
+    fun compileAll(sources: Map<String, String>, stdlibPath: Path? = null): Map<String, CompilationResult> {
+        val compiler = ToolProvider.getSystemJavaCompiler()
+        val standardFileManager = standardFileManager
+        if (compiler == null || standardFileManager == null) {
+            val failure = CompilationResult.Failure(
+                listOf(CompilationError(0, 0, "Java compiler not available. Ensure JDK is installed."))
+            )
+            return sources.mapValues { failure }
+        }
+
+        val results = mutableMapOf<String, CompilationResult>()
+        var pending = sources.map { (className, code) -> StringJavaSource(className, code) }
+        while (pending.isNotEmpty()) {
+            val diagnostics = DiagnosticCollector<JavaFileObject>()
+            val fileManager = InMemoryFileManager(standardFileManager)
+            val success = call(compiler, standardFileManager, fileManager, diagnostics, pending, stdlibPath)
+            fileManager.close()
+
+            if (success) {
+                val classBytes = fileManager.classBytes
+                pending.forEach { source ->
+                    val programClasses = classBytes.filterKeys { it == source.className || it.startsWith("${source.className}$") }
+                    results[source.className] = load(source.className, programClasses, stdlibPath)
+                }
+                break
+            }
+
+            val errors = diagnostics.diagnostics.filter { it.kind == Diagnostic.Kind.ERROR }.groupBy { it.source }
+            val failed = pending.filter { it in errors }
+            if (failed.isEmpty()) {
+                // Errors that belong to no source, e.g. invalid options, fail the whole batch
+                pending.forEach { results[it.className] = CompilationResult.Failure(collectErrors(diagnostics)) }
+                break
+            }
+            failed.forEach { source ->
+                results[source.className] = CompilationResult.Failure(errors.getValue(source).map(::toCompilationError))
+            }
+            pending = pending - failed.toSet()
+        }
+
+        return sources.keys.associateWith { results.getValue(it) }
+    }
+
+    /**
+     * Loads previously compiled class files, e.g. from a [CompilationCache].
+     */
+    fun load(className: String, classBytes: Map<String, ByteArray>, stdlibPath: Path? = null): CompilationResult.Success {
+        val parent = if (stdlibPath != null && Files.exists(stdlibPath)) {
+            URLClassLoader(arrayOf(stdlibPath.toUri().toURL()), this.javaClass.classLoader)
+        } else {
+            this.javaClass.classLoader
+        }
+
+        val classLoader = MemoryClassLoader(classBytes, parent)
+        val compiledClass = classLoader.loadClass(className)
+
+        return CompilationResult.Success(
+            className = className,
+            classLoader = classLoader,
+            compiledClass = compiledClass,
+            classBytes = classBytes
+        )
+    }
+
+    private fun collectErrors(diagnostics: DiagnosticCollector<JavaFileObject>) = diagnostics.diagnostics
+        .filter { it.kind == Diagnostic.Kind.ERROR }
+        .map(::toCompilationError)
+
+    private fun toCompilationError(diagnostic: Diagnostic<out JavaFileObject>) = CompilationError(
+        line = diagnostic.lineNumber,
+        column = diagnostic.columnNumber,
+        message = diagnostic.getMessage(null)
+    )
+
     fun execute(compilationResult: CompilationResult.Success, args: Array<String> = emptyArray()): ExecutionResult {
         val oldOut = System.out
         val oldErr = System.err
@@ -112,9 +234,18 @@ class JavaRuntimeCompiler {
         sourceFile: Path,
         stdlibPath: Path? = null,
         args: Array<String> = emptyArray()
-    ): Pair<CompilationResult, ExecutionResult?> {
-        val compilationResult = compile(sourceFile, stdlibPath)
+    ): Pair<CompilationResult, ExecutionResult?> = executeIfCompiled(compile(sourceFile, stdlibPath), args)
+
+    fun compileAndExecute(
+        sourceCode: String,
+        stdlibPath: Path? = null,
+        args: Array<String> = emptyArray()
+    ): Pair<CompilationResult, ExecutionResult?> = executeIfCompiled(compile(sourceCode, stdlibPath), args)
 
+    private fun executeIfCompiled(
+        compilationResult: CompilationResult,
+        args: Array<String>
+    ): Pair<CompilationResult, ExecutionResult?> {
         return when (compilationResult) {
             is CompilationResult.Success -> {
                 val executionResult = execute(compilationResult, args)
@@ -126,10 +257,19 @@ class JavaRuntimeCompiler {
         }
     }
 
-    private fun extractClassName(sourceContent: String, fileName: String): String {
-        val packageRegex = Regex("""package\s+([\w.]+)\s*;""")
-        val classRegex = Regex("""public\s+class\s+(\w+)""")
+    /**
+     * Returns the lines of [sourceFile] up to the class declaration, without reading large sources in full.
+     */
+    private fun readHead(sourceFile: Path): String = Files.newBufferedReader(sourceFile).useLines { lines ->
+        val head = StringBuilder()
+        for (line in lines) {
+            head.appendLine(line)
+            if (classRegex.containsMatchIn(line)) break
+        }
+        head.toString()
+    }
 
+    private fun extractClassName(sourceContent: String, fileName: String): String {
         val packageMatch = packageRegex.find(sourceContent)
         val classMatch = classRegex.find(sourceContent)
 
@@ -142,4 +282,9 @@ class JavaRuntimeCompiler {
             simpleClassName
         }
     }
+
+    companion object {
+        private val packageRegex = Regex("""package\s+([\w.]+)\s*;""")
+        private val classRegex = Regex("""public\s+class\s+(\w+)""")
+    }
 }
@@ -0,0 +1,41 @@
+package org.example.compiler
+
+import java.io.InputStream
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+
+/**
+ * Reads a file through memory-mapped windows of at most [windowSize] bytes, so that reading a file of any size
+ * neither copies it onto the heap nor maps more than one window at a time.
+ */
+class MappedFileInputStream(path: Path, private val windowSize: Long = 64L * 1024 * 1024) : InputStream() {
+    private val channel = FileChannel.open(path)
+    private val size = channel.size()
+    private var position = 0L
+    private var window: MappedByteBuffer? = null
+
+    private fun currentWindow(): MappedByteBuffer? {
+        window?.takeIf { it.hasRemaining() }?.let { return it }
+        if (position == size) return null
+        val length = minOf(windowSize, size - position)
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length).also {
+            position += length
+            window = it
+        }
+    }
+
+    override fun read(): Int = currentWindow()?.get()?.toInt()?.and(0xff) ?: -1
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        val window = currentWindow() ?: return -1
+        val count = minOf(len, window.remaining())
+        window.get(b, off, count)
+        return count
+    }
+
+    override fun available() = minOf((window?.remaining() ?: 0) + (size - position), Int.MAX_VALUE.toLong()).toInt()
+
+    override fun close() = channel.close()
+}
@@ -0,0 +1,46 @@
+package org.example.compiler
+
+import compiler.MiniKotlinAst
+import compiler.MiniKotlinPrattParser
+
+/**
+ * Turns MiniKotlin source into the AST that [compiler.MiniKotlinCompiler] compiles.
+ */
+enum class MiniKotlinFrontend {
+    /**
+     * The ANTLR parser generated from `MiniKotlin.g4`, building the AST during the parse with
+     * [compiler.MiniKotlinAstBuilder].
+     */
+    ANTLR {
+        override fun parse(source: String) = MiniKotlinParsing.parseAst(source)
+    },
+
+    /**
+     * [MiniKotlinPrattParser], which builds the AST directly and does not load the ANTLR runtime.
+     */
+    HANDWRITTEN {
+        override fun parse(source: String) = MiniKotlinPrattParser(source).parseProgram()
+    };
+
+    abstract fun parse(source: String): MiniKotlinAst.Program
+
+    companion object {
+        /**
+         * Parses [source] with both frontends and returns a description of the first difference, or `null` when
+         * they build the same AST or fail alike.
+         */
+        fun checkConformance(source: String): String? {
+            val expected = runCatching { ANTLR.parse(source) }
+            val actual = runCatching { HANDWRITTEN.parse(source) }
+            return when {
+                expected.isFailure && actual.isFailure -> null
+                expected.isFailure -> "ANTLR frontend failed: ${expected.exceptionOrNull()?.message}"
+                actual.isFailure -> "Handwritten frontend failed: ${actual.exceptionOrNull()?.message}"
+                expected.getOrThrow() != actual.getOrThrow() ->
+                    "ASTs differ:\n${expected.getOrThrow()}\n${actual.getOrThrow()}"
+
+                else -> null
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.example.compiler
+
+import MiniKotlinLexer
+import MiniKotlinParser
+import compiler.MiniKotlinAst
+import compiler.MiniKotlinAstBuilder
+import compiler.MiniKotlinParserVisitor
+import org.antlr.v4.runtime.BailErrorStrategy
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonTokenFactory
+import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.ConsoleErrorListener
+import org.antlr.v4.runtime.DefaultErrorStrategy
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.UnbufferedCharStream
+import org.antlr.v4.runtime.UnbufferedTokenStream
+import org.antlr.v4.runtime.atn.PredictionMode
+import org.antlr.v4.runtime.misc.ParseCancellationException
+import java.nio.file.Path
+
+/**
+ * Parses MiniKotlin programs in two stages: first with SLL prediction, which is much cheaper on the left-recursive
+ * `expression` rule, and only when that fails with the full LL prediction and the default error reporting.
+ * A successful SLL parse is the same as the LL parse, so in practice the second stage only runs for input with
+ * syntax errors, which it reports as before.
+ *
+ * The prediction DFA and the [org.antlr.v4.runtime.atn.PredictionContextCache] are static in the generated
+ * [MiniKotlinParser], and thus shared by all parser instances and threads; [warmUp] fills them ahead of time.
+ */
+object MiniKotlinParsing {
+    fun parse(input: CharStream): MiniKotlinParser.ProgramContext {
+        val tokens = CommonTokenStream(MiniKotlinLexer(input))
+        val parser = MiniKotlinParser(tokens)
+        parser.interpreter.predictionMode = PredictionMode.SLL
+        parser.errorHandler = BailErrorStrategy()
+        parser.removeErrorListeners()
+        try {
+            return parser.program()
+        } catch (e: ParseCancellationException) {
+            parser.reset()
+            parser.interpreter.predictionMode = PredictionMode.LL
+            parser.errorHandler = DefaultErrorStrategy()
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE)
+            return parser.program()
+        }
+    }
+
+    fun parse(source: String): MiniKotlinParser.ProgramContext = parse(CharStreams.fromString(source))
+
+    /**
+     * Parses straight into the AST, without building a parse tree: the SLL stage feeds a [MiniKotlinAstBuilder].
+     * Input that needs the LL stage is parsed again into a parse tree, so syntax errors are recovered from and
+     * reported exactly like by [parse].
+     */
+    fun parseAst(input: CharStream): MiniKotlinAst.Program {
+        val parser = MiniKotlinParser(CommonTokenStream(MiniKotlinLexer(input)))
+        val builder = MiniKotlinAstBuilder()
+        parser.buildParseTree = false
+        parser.addParseListener(builder)
+        parser.interpreter.predictionMode = PredictionMode.SLL
+        parser.errorHandler = BailErrorStrategy()
+        parser.removeErrorListeners()
+        try {
+            parser.program()
+            return builder.program
+        } catch (e: ParseCancellationException) {
+            input.seek(0)
+            return MiniKotlinParserVisitor().visitProgram(parse(input))
+        }
+    }
+
+    fun parseAst(source: String): MiniKotlinAst.Program = parseAst(CharStreams.fromString(source))
+
+    /**
+     * Parses a file of any size into the AST while holding only a window of it in memory: the file is read through
+     * a [MappedFileInputStream] and the lexer and parser see it through unbuffered streams of [bufferSize].
+     * Tokens copy their text, since the characters they were read from are discarded.
+     *
+     * Only the SLL stage streams. Input that needs the LL stage is read in full and parsed like by [parseAst].
+     */
+    fun parseAst(path: Path, bufferSize: Int = 4096): MiniKotlinAst.Program {
+        val builder = MiniKotlinAstBuilder()
+        try {
+            MappedFileInputStream(path).reader().use { reader ->
+                val lexer = MiniKotlinLexer(UnbufferedCharStream(reader, bufferSize))
+                lexer.tokenFactory = CommonTokenFactory(true)
+                val parser = MiniKotlinParser(UnbufferedTokenStream<Token>(lexer, bufferSize))
+                parser.buildParseTree = false
+                parser.addParseListener(builder)
+                parser.interpreter.predictionMode = PredictionMode.SLL
+                parser.errorHandler = BailErrorStrategy()
+                parser.removeErrorListeners()
+                parser.program()
+            }
+            return builder.program
+        } catch (e: ParseCancellationException) {
+            return parseAst(CharStreams.fromPath(path))
+        }
+    }
+
+    /**
+     * Parses a program using every rule and operator precedence level, so that later parses find most of their
+     * predictions in the shared DFA.
+     */
+    fun warmUp() {
+        parse(WARM_UP_PROGRAM)
+    }
+
+    private const val WARM_UP_PROGRAM = """
+        fun f(a: Int, b: String, c: Boolean): Int {
+            var x: Int = 1 + a * (2 - a) / 3 % 4
+            x = f(x, b + "s", !c && x < 1 || x >= 2 && x <= 3 || x > 4 == (x != 5))
+            if (c) {
+                return x
+            } else {
+                while (x < 10) {
+                    x = x + 1
+                }
+            }
+            println(x)
+            return f(a, b, true)
+        }
+
+        fun main(): Unit {
+            f(1, "a", false)
+            return
+        }
+    """
+}
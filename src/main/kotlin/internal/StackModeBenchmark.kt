@@ -0,0 +1,56 @@
+package org.example.compiler
+
+import compiler.MiniKotlinCompiler
+import compiler.MiniKotlinStackMode
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Compares the throughput of programs compiled in each [MiniKotlinStackMode]. Each program is compiled once per mode
+ * and run [warmupRuns] times before the [measuredRuns] timed runs, so that class loading and JIT compilation do not
+ * dominate the comparison. Program output is captured and discarded.
+ */
+class StackModeBenchmark(
+    private val stdlibPath: Path? = null,
+    private val frontend: MiniKotlinFrontend = MiniKotlinFrontend.ANTLR,
+    private val warmupRuns: Int = 5,
+    private val measuredRuns: Int = 20
+) {
+    /**
+     * [runsPerSecond] is `null` when the program could not be compiled or failed in this mode, e.g. with a
+     * StackOverflowError, which is then described by [error].
+     */
+    data class Measurement(
+        val input: Path,
+        val stackMode: MiniKotlinStackMode,
+        val runsPerSecond: Double?,
+        val error: String? = null
+    )
+
+    private val javaCompiler = JavaRuntimeCompiler()
+
+    fun measure(inputs: List<Path>): List<Measurement> =
+        inputs.flatMap { input -> MiniKotlinStackMode.entries.map { measure(input, it) } }
+
+    private fun measure(input: Path, stackMode: MiniKotlinStackMode): Measurement {
+        val javaCode = MiniKotlinCompiler(stackMode).compile(frontend.parse(Files.readString(input)))
+        val program = when (val result = javaCompiler.compile(javaCode, stdlibPath)) {
+            is CompilationResult.Success -> result
+            is CompilationResult.Failure -> {
+                return Measurement(input, stackMode, null, result.errors.joinToString { it.message })
+            }
+        }
+
+        repeat(warmupRuns) { run(program)?.let { return Measurement(input, stackMode, null, it) } }
+        val start = System.nanoTime()
+        repeat(measuredRuns) { run(program)?.let { return Measurement(input, stackMode, null, it) } }
+        val seconds = (System.nanoTime() - start) / 1e9
+        return Measurement(input, stackMode, measuredRuns / seconds)
+    }
+
+    /**
+     * Returns the error of a failed run.
+     */
+    private fun run(program: CompilationResult.Success): String? =
+        (javaCompiler.execute(program) as? ExecutionResult.Failure)?.exception?.toString()
+}
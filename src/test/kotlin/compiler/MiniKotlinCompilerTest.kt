@@ -2,14 +2,23 @@ package org.example.compiler
 
 import MiniKotlinLexer
 import MiniKotlinParser
+import compiler.MiniKotlinBackend
 import compiler.MiniKotlinCompiler
+import compiler.MiniKotlinParserVisitor
+import compiler.MiniKotlinScopeTable
+import compiler.MiniKotlinStackMode
 import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.CommonTokenStream
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.io.TempDir
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.lang.reflect.InvocationTargetException
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
 import kotlin.test.assertIs
@@ -20,13 +29,8 @@ class MiniKotlinCompilerTest {
     @TempDir
     lateinit var tempDir: Path
 
-    private fun parseFile(path: Path): MiniKotlinParser.ProgramContext {
-        val input = CharStreams.fromPath(path)
-        val lexer = MiniKotlinLexer(input)
-        val tokens = CommonTokenStream(lexer)
-        val parser = MiniKotlinParser(tokens)
-        return parser.program()
-    }
+    private fun parseFile(path: Path): MiniKotlinParser.ProgramContext =
+        MiniKotlinParsing.parse(CharStreams.fromPath(path))
 
     private fun resolveStdlibPath(): Path? {
         val devPath = Paths.get("build", "stdlib")
@@ -427,6 +431,11 @@ class MiniKotlinCompilerTest {
 
         val compiler = MiniKotlinCompiler()
         val javaCode = compiler.compile(program)
+        val liftedMethods = javaCode.lines().filter { it.trimStart().startsWith("private static void main\$") }
+        assertTrue(
+            liftedMethods.isNotEmpty() && liftedMethods.all { it.startsWith("    private") },
+            "Expected continuations to be lifted into class members"
+        )
 
         val javaFile = tempDir.resolve("MiniProgram.java")
         Files.writeString(javaFile, javaCode)
@@ -449,6 +458,7 @@ class MiniKotlinCompilerTest {
 
         val compiler = MiniKotlinCompiler()
         val javaCode = compiler.compile(program)
+        assertTrue(!javaCode.contains("BooleanContinuation"), "Expected call-free operators to be native")
 
         val javaFile = tempDir.resolve("MiniProgram.java")
         Files.writeString(javaFile, javaCode)
@@ -483,4 +493,484 @@ class MiniKotlinCompilerTest {
         val exc = assertFailsWith<IllegalStateException> { compiler.compile(program) }
         assertEquals("Main function calls forbidden.", exc.message)
     }
+
+    @Test
+    fun `compile long_loop_mini outputs 2999997`() {
+        val examplePath = Paths.get("samples/long_loop.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler()
+        val javaCode = compiler.compile(program)
+
+        val javaFile = tempDir.resolve("MiniProgram.java")
+        Files.writeString(javaFile, javaCode)
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaFile, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("2999997\n", output)
+    }
+
+    @Test
+    fun `compile direct_style_mini outputs 10 true 3 true`() {
+        val examplePath = Paths.get("samples/direct_style.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler()
+        val javaCode = compiler.compile(program)
+        assertTrue(javaCode.contains("public static int sumBelow(int n)"), "Expected sumBelow to be direct-style")
+        assertTrue(javaCode.contains("public static boolean isEven(int n)"), "Expected isEven to be direct-style")
+
+        val javaFile = tempDir.resolve("MiniProgram.java")
+        Files.writeString(javaFile, javaCode)
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaFile, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("10\ntrue\n3\ntrue\n", output)
+    }
+
+    @Test
+    fun `compile native_loop_mini outputs 2999997 8 10 3`() {
+        val examplePath = Paths.get("samples/native_loop.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler()
+        val javaCode = compiler.compile(program)
+        assertTrue(!javaCode.contains("Trampoline"), "Expected all loops to be native Java loops")
+
+        val javaFile = tempDir.resolve("MiniProgram.java")
+        Files.writeString(javaFile, javaCode)
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaFile, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("2999997\n8\n10\n3\n", output)
+    }
+
+    @Test
+    fun `compile tail_recursion_mini outputs 1000000 21 3 2 1`() {
+        val examplePath = Paths.get("samples/tail_recursion.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler()
+        val javaCode = compiler.compile(program)
+        assertTrue(javaCode.contains("continue __tail;"), "Expected direct self tail calls to be loops")
+        assertTrue(javaCode.contains("countDown(n - 1, __continuation);"), "Expected the continuation to be passed on")
+
+        val javaFile = tempDir.resolve("MiniProgram.java")
+        Files.writeString(javaFile, javaCode)
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaFile, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("1000000\n21\n3\n2\n1\n", output)
+    }
+
+    @Test
+    fun `compile deep_recursion_mini with heap stack outputs 200000`() {
+        val examplePath = Paths.get("samples/deep_recursion.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler(MiniKotlinStackMode.HEAP)
+        val javaCode = compiler.compile(program)
+        assertTrue(javaCode.contains("Dispatcher.run(() ->"), "Expected function bodies to run as dispatcher frames")
+
+        val javaFile = tempDir.resolve("MiniProgram.java")
+        Files.writeString(javaFile, javaCode)
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaFile, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("200000\n", output)
+    }
+
+    @Test
+    fun `heap stack mode runs all samples like the java stack mode`() {
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        for (name in listOf("example", "recursion", "control_flow", "short_circuit", "long_loop", "native_loop")) {
+            val outputs = MiniKotlinStackMode.entries.map { mode ->
+                val javaCode = MiniKotlinCompiler(mode).compile(parseFile(Paths.get("samples/$name.mini")))
+                val (_, executionResult) = javaCompiler.compileAndExecute(javaCode, stdlibPath)
+                assertIs<ExecutionResult.Success>(executionResult, "$name in $mode mode")
+                executionResult.stdout
+            }
+            assertEquals(outputs[0], outputs[1], name)
+        }
+    }
+
+    @Test
+    fun `state machine backend runs all samples like the lambda backend`() {
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val names = listOf(
+            "example", "recursion", "control_flow", "short_circuit", "many_sequential_short_circuit", "long_loop",
+            "native_loop", "tail_recursion", "return_halts_execution", "string_comparison", "unit_return_continuation"
+        )
+        for (name in names) {
+            val outputs = MiniKotlinBackend.entries.map { backend ->
+                val javaCode = MiniKotlinCompiler(backend = backend).compile(parseFile(Paths.get("samples/$name.mini")))
+                val (_, executionResult) = javaCompiler.compileAndExecute(javaCode, stdlibPath)
+                assertIs<ExecutionResult.Success>(executionResult, "$name with $backend")
+                executionResult.stdout
+            }
+            assertEquals(outputs[0], outputs[1], name)
+        }
+    }
+
+    @Test
+    fun `bytecode backend runs all samples like the java backend`() {
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val names = listOf(
+            "example", "basic_math", "logic_types", "recursion", "control_flow", "short_circuit", "direct_style",
+            "many_sequential_if_statements", "many_sequential_short_circuit", "long_loop", "native_loop",
+            "tail_recursion", "return_halts_execution", "string_comparison", "string_literal_escaping",
+            "unit_return_continuation", "variable_shadowing_1", "function_args_namespace_collision"
+        )
+        for (name in names) {
+            val compiler = MiniKotlinCompiler()
+            val (_, expected) = javaCompiler.compileAndExecute(compiler.compile(parseFile(Paths.get("samples/$name.mini"))), stdlibPath)
+            assertIs<ExecutionResult.Success>(expected, name)
+
+            val classFile = compiler.compileToClass(parseFile(Paths.get("samples/$name.mini")))
+            val executionResult = javaCompiler.execute(javaCompiler.load("MiniProgram", mapOf("MiniProgram" to classFile), stdlibPath))
+            assertIs<ExecutionResult.Success>(executionResult, name)
+            assertEquals(expected.stdout, executionResult.stdout, name)
+        }
+    }
+
+    @Test
+    fun `compile deep_recursion_mini to state machines with heap stack outputs 200000`() {
+        val examplePath = Paths.get("samples/deep_recursion.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler(MiniKotlinStackMode.HEAP, MiniKotlinBackend.STATE_MACHINES)
+        val javaCode = compiler.compile(program)
+        assertTrue(javaCode.contains("extends StateMachine"), "Expected functions to be compiled to frame classes")
+        assertTrue(!javaCode.contains("->"), "Expected no continuation lambdas")
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaCode, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("200000\n", output)
+    }
+
+    @Test
+    fun `compile example_mini in memory outputs 120 and 15`() {
+        val examplePath = Paths.get("samples/example.mini")
+        val program = parseFile(examplePath)
+
+        val compiler = MiniKotlinCompiler()
+        val javaCode = compiler.compile(program)
+
+        val javaCompiler = JavaRuntimeCompiler()
+        val stdlibPath = resolveStdlibPath()
+        val (compilationResult, executionResult) = javaCompiler.compileAndExecute(javaCode, stdlibPath)
+
+        assertIs<CompilationResult.Success>(compilationResult)
+        assertIs<MemoryClassLoader>(compilationResult.classLoader)
+        assertIs<ExecutionResult.Success>(executionResult)
+
+        val output = executionResult.stdout
+        assertEquals("120\n15\n", output)
+    }
+
+    @Test
+    fun `compilation cache serves repeated programs from memory and disk`() {
+        val source = Files.readString(Paths.get("samples/example.mini"))
+        val stdlibPath = resolveStdlibPath()
+        val cacheDir = tempDir.resolve("cache")
+
+        val cache = CompilationCache(cacheDir, stdlibPath = stdlibPath)
+        val first = cache.compile(source)
+        val second = cache.compile(source)
+        assertIs<CompilationResult.Success>(first)
+        assertTrue(first === second, "Expected the second compilation to be served from memory")
+        assertEquals(CompilationCache.Statistics(hits = 1, diskHits = 0, misses = 1, evictions = 0), cache.statistics)
+
+        val restarted = CompilationCache(cacheDir, capacity = 1, stdlibPath = stdlibPath)
+        val loaded = restarted.compile(source)
+        assertIs<CompilationResult.Success>(loaded)
+        val executionResult = JavaRuntimeCompiler().execute(loaded)
+        assertIs<ExecutionResult.Success>(executionResult)
+        assertEquals("120\n15\n", executionResult.stdout)
+
+        restarted.compile(Files.readString(Paths.get("samples/basic_math.mini")))
+        assertEquals(CompilationCache.Statistics(hits = 0, diskHits = 1, misses = 1, evictions = 1), restarted.statistics)
+    }
+
+    @Test
+    fun `compile daemon runs example_mini over a unix socket`() {
+        val socketPath = tempDir.resolve("daemon.sock")
+        val listening = CountDownLatch(1)
+        val daemon = thread(isDaemon = true) {
+            CompileDaemon(socketPath, resolveStdlibPath()).serve { listening.countDown() }
+        }
+        listening.await()
+        val client = CompileDaemonClient(socketPath)
+
+        try {
+            val source = Files.readString(Paths.get("samples/example.mini"))
+            assertEquals(CompileDaemonClient.Response(true, "120\n15\n"), client.send("run", source))
+            assertEquals(CompileDaemonClient.Response(true, "Compiled MiniProgram\n"), client.send("compile", source))
+            assertTrue(client.send("status").output.contains("requests: 3"), "Expected the daemon to count requests")
+
+            val missingReturn = Files.readString(Paths.get("samples/missing_necessary_return.mini"))
+            assertEquals(false, client.send("run", missingReturn).ok)
+        } finally {
+            client.send("stop")
+            daemon.join()
+        }
+    }
+
+    @Test
+    fun `batch compilation reports results for each input`() {
+        val inputs = listOf("example", "basic_math", "missing_necessary_return").map { Paths.get("samples/$it.mini") }
+        val results = BatchCompiler(resolveStdlibPath()).compile(inputs)
+
+        assertEquals(inputs, results.keys.toList())
+        val example = results.getValue(inputs[0])
+        assertIs<CompilationResult.Success>(example)
+        assertEquals("MiniProgram_example", example.className)
+        assertIs<CompilationResult.Success>(results.getValue(inputs[1]))
+        val missingReturn = results.getValue(inputs[2])
+        assertIs<CompilationResult.Failure>(missingReturn)
+        assertEquals("Missing return statement in function 'f0'", missingReturn.errors.single().message)
+
+        val executionResult = JavaRuntimeCompiler().execute(example)
+        assertIs<ExecutionResult.Success>(executionResult)
+        assertEquals("120\n15\n", executionResult.stdout)
+
+        val javacResults = JavaRuntimeCompiler().compileAll(
+            mapOf("Broken" to "public class Broken { int x = ; }", "Fine" to "public class Fine {}")
+        )
+        assertIs<CompilationResult.Failure>(javacResults.getValue("Broken"))
+        assertIs<CompilationResult.Success>(javacResults.getValue("Fine"))
+    }
+
+    @Test
+    fun `batch compilation rejects duplicate inputs`() {
+        val inputs = listOf(Paths.get("samples/example.mini"), Paths.get("samples/../samples/example.mini"))
+
+        val exc = assertFailsWith<IllegalArgumentException> { BatchCompiler(resolveStdlibPath()).compile(inputs) }
+        assertEquals("Duplicate inputs: samples/example.mini = samples/../samples/example.mini", exc.message)
+    }
+
+    @Test
+    fun `parallel compilation of control_flow_mini is deterministic`() {
+        val examplePath = Paths.get("samples/control_flow.mini")
+
+        val outputs = (1..20).map { MiniKotlinCompiler().compile(parseFile(examplePath)) }
+        assertEquals(1, outputs.toSet().size)
+    }
+
+    @Test
+    fun `two-stage parsing of all samples matches LL parsing`() {
+        MiniKotlinParsing.warmUp()
+        Files.list(Paths.get("samples")).use { samples ->
+            samples.filter { it.toString().endsWith(".mini") }.forEach { path ->
+                val parser = MiniKotlinParser(CommonTokenStream(MiniKotlinLexer(CharStreams.fromPath(path))))
+                val expected = parser.program().toStringTree(parser)
+                assertEquals(expected, parseFile(path).toStringTree(parser), path.toString())
+            }
+        }
+    }
+
+    @Test
+    fun `handwritten frontend builds the same AST as ANTLR for all samples`() {
+        Files.list(Paths.get("samples")).use { samples ->
+            samples.filter { it.toString().endsWith(".mini") }.forEach { path ->
+                assertEquals(null, MiniKotlinFrontend.checkConformance(Files.readString(path)), path.toString())
+            }
+        }
+
+        val exc = assertFailsWith<IllegalStateException> {
+            MiniKotlinFrontend.HANDWRITTEN.parse("fun main(): Unit {\n    var x: Int = )\n}")
+        }
+        assertEquals("line 2:17 mismatched input ')' expecting an expression", exc.message)
+    }
+
+    @Test
+    fun `parsing without a parse tree builds the same AST for all samples`() {
+        Files.list(Paths.get("samples")).use { samples ->
+            samples.filter { it.toString().endsWith(".mini") }.forEach { path ->
+                val expected = MiniKotlinParserVisitor().visitProgram(parseFile(path))
+                assertEquals(expected, MiniKotlinParsing.parseAst(CharStreams.fromPath(path)), path.toString())
+            }
+        }
+    }
+
+    @Test
+    fun `streaming parse of memory-mapped samples builds the same AST`() {
+        Files.list(Paths.get("samples")).use { samples ->
+            samples.filter { it.toString().endsWith(".mini") }.forEach { path ->
+                val expected = MiniKotlinParsing.parseAst(CharStreams.fromPath(path))
+                assertEquals(expected, MiniKotlinParsing.parseAst(path, bufferSize = 16), path.toString())
+                val bytes = MappedFileInputStream(path, windowSize = 7).use { it.readBytes() }
+                assertTrue(Files.readAllBytes(path).contentEquals(bytes), path.toString())
+            }
+        }
+    }
+
+    @Test
+    fun `deeply nested expressions compile without overflowing the stack`() {
+        val operators = List(30_000) { "1" }.joinToString(" + ")
+        val calls = List(2_000) { "one()" }.joinToString(" + ")
+        val source = """
+            fun one(): Int {
+                println("one")
+                return 1
+            }
+
+            fun main(): Unit {
+                var x: Int = $operators
+                var y: Int = $calls
+                println(x > y && !(x == y))
+            }
+        """.trimIndent()
+
+        val javaCode = MiniKotlinCompiler().compile(MiniKotlinFrontend.HANDWRITTEN.parse(source))
+        assertTrue(javaCode.contains("final int x_0 = 1 + 1 + 1"), javaCode.take(1000))
+    }
+
+    @Test
+    fun `direct calls in earlier operands run before the calls of later operands`() {
+        val source = """
+            fun id(x: Int): Int {
+                return x
+            }
+
+            fun two(): Int {
+                println("two")
+                return 2
+            }
+
+            fun main(): Unit {
+                println(id(1 / 0) + two())
+            }
+        """.trimIndent()
+
+        val javaCode = MiniKotlinCompiler().compile(MiniKotlinFrontend.HANDWRITTEN.parse(source))
+        val compilationResult = JavaRuntimeCompiler().compile(javaCode, resolveStdlibPath())
+        assertIs<CompilationResult.Success>(compilationResult)
+
+        // ExecutionResult.Failure drops the output, so main is invoked here to see what it printed before failing
+        val output = ByteArrayOutputStream()
+        val oldOut = System.out
+        System.setOut(PrintStream(output))
+        try {
+            val exception = assertFailsWith<InvocationTargetException> {
+                compilationResult.compiledClass.getMethod("main", Array<String>::class.java).invoke(null, emptyArray<String>())
+            }
+            assertIs<ArithmeticException>(exception.cause)
+        } finally {
+            System.setOut(oldOut)
+        }
+        assertEquals("", output.toString(), "Expected id(1 / 0) to fail before two() prints")
+    }
+
+    @Test
+    fun `scope table restores shadowed variables when a scope ends`() {
+        val table = MiniKotlinScopeTable<String>()
+        table.enterScope()
+        table.declare("x", "outer")
+        table.enterScope()
+        table.declare("x", "inner")
+        assertEquals("inner", table["x"])
+        assertTrue(table.isDeclaredInCurrentScope("x"))
+        table.exitScope()
+        assertEquals("outer", table["x"])
+        assertTrue(table.isDeclaredInCurrentScope("x"))
+    }
+
+    @Test
+    fun `scope table reports redeclarations only in the same scope`() {
+        val table = MiniKotlinScopeTable<String>()
+        table.enterScope()
+        table.declare("x", "outer")
+        table.enterScope()
+        assertTrue(!table.isDeclaredInCurrentScope("x"), "Expected an outer variable to be shadowable")
+        table.declare("y", "inner")
+        assertTrue(table.isDeclaredInCurrentScope("y"))
+        table.exitScope()
+        assertTrue(!table.isDeclaredInCurrentScope("y"))
+    }
+
+    @Test
+    fun `scope table forgets variables declared in a block once it ends`() {
+        val table = MiniKotlinScopeTable<String>()
+        table.enterScope()
+        table.enterScope()
+        table.declare("y", "inner")
+        table.exitScope()
+        assertEquals(null, table["y"])
+
+        val source = """
+            fun main(): Unit {
+                if (true) {
+                    var y: Int = 1
+                }
+                println(y)
+            }
+        """.trimIndent()
+        val exc = assertFailsWith<IllegalStateException> {
+            MiniKotlinCompiler().compile(MiniKotlinFrontend.HANDWRITTEN.parse(source))
+        }
+        assertEquals("Variable not found: y", exc.message)
+    }
+
+    @Test
+    fun `variables can be redeclared in a sibling block and shadowed again`() {
+        val source = """
+            fun main(): Unit {
+                var x: String = "a"
+                if (true) {
+                    var x: String = "b"
+                    println(x)
+                }
+                if (true) {
+                    var x: String = "c"
+                    println(x)
+                }
+                println(x)
+            }
+        """.trimIndent()
+
+        val javaCode = MiniKotlinCompiler().compile(MiniKotlinFrontend.HANDWRITTEN.parse(source))
+        val (_, executionResult) = JavaRuntimeCompiler().compileAndExecute(javaCode, resolveStdlibPath())
+        assertIs<ExecutionResult.Success>(executionResult)
+        assertEquals("b\nc\na\n", executionResult.stdout)
+    }
 }
@@ -0,0 +1,3 @@
+public interface BooleanContinuation {
+    void accept(boolean value);
+}
\ No newline at end of file
@@ -0,0 +1,39 @@
+import java.util.ArrayDeque;
+
+/**
+ * The dispatch loop of programs compiled with heap-allocated continuations. Function bodies and continuations are
+ * passed to {@link #run} as frames instead of being called directly. Every call in such code is a tail call, so a
+ * frame only has to wait until the frame that scheduled it unwinds back to the loop below. The Java stack therefore
+ * stays flat, and the pending work of a deep recursion lives in the continuation objects on the heap.
+ */
+public final class Dispatcher {
+    private static final ThreadLocal<Dispatcher> CURRENT = ThreadLocal.withInitial(Dispatcher::new);
+
+    private final ArrayDeque<Runnable> frames = new ArrayDeque<>();
+    private boolean running;
+
+    private Dispatcher() {
+    }
+
+    /**
+     * Runs {@code frame} once the current frame of this thread returns, or right away when no frame is running.
+     */
+    public static void run(Runnable frame) {
+        Dispatcher dispatcher = CURRENT.get();
+        dispatcher.frames.push(frame);
+        if (dispatcher.running) {
+            return;
+        }
+
+        dispatcher.running = true;
+        try {
+            Runnable next;
+            while ((next = dispatcher.frames.poll()) != null) {
+                next.run();
+            }
+        } finally {
+            dispatcher.frames.clear();
+            dispatcher.running = false;
+        }
+    }
+}
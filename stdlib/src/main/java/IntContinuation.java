@@ -0,0 +1,3 @@
+public interface IntContinuation {
+    void accept(int value);
+}
\ No newline at end of file
@@ -1,6 +1,13 @@
 public class Prelude {
-    public static void println(Object message, Continuation<Void> continuation) {
+    public static void println(Object message, UnitContinuation continuation) {
+        println(message);
+        continuation.accept();
+    }
+
+    /**
+     * Used by the bytecode backend, whose functions return their result instead of passing it to a continuation.
+     */
+    public static void println(Object message) {
         System.out.println(message);
-        continuation.accept(null);
     }
 }
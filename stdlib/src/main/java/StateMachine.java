@@ -0,0 +1,59 @@
+/**
+ * The frame of a function compiled to a state machine. {@link #run} executes the body from the step stored in
+ * {@link #label} until the next call that needs a continuation. The frame passes itself as that continuation, so
+ * the result is stored in one of the result fields and the body resumes at the next step. A result that arrives
+ * while a step is still running is picked up once the step returns, like {@link Trampoline#bounce}, so the Java
+ * stack does not grow with the number of calls made by the function.
+ */
+public abstract class StateMachine
+        implements Runnable, IntContinuation, BooleanContinuation, UnitContinuation, Continuation<String> {
+    protected int label;
+    protected int intResult;
+    protected boolean booleanResult;
+    protected String stringResult;
+    private boolean running;
+    private boolean pending;
+
+    @Override
+    public final void accept(int value) {
+        intResult = value;
+        resume();
+    }
+
+    @Override
+    public final void accept(boolean value) {
+        booleanResult = value;
+        resume();
+    }
+
+    @Override
+    public final void accept() {
+        resume();
+    }
+
+    @Override
+    public final void accept(String value) {
+        stringResult = value;
+        resume();
+    }
+
+    /**
+     * Runs the next step, or records the request when a step of this frame is still running.
+     */
+    public void resume() {
+        pending = true;
+        if (running) {
+            return;
+        }
+
+        running = true;
+        try {
+            while (pending) {
+                pending = false;
+                run();
+            }
+        } finally {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+public final class Trampoline {
+    private final Continuation<Trampoline> iteration;
+    private boolean running;
+    private boolean pending;
+
+    public Trampoline(Continuation<Trampoline> iteration) {
+        this.iteration = iteration;
+    }
+
+    /**
+     * Requests another iteration. When called from inside a running iteration, the request is recorded
+     * and picked up once the current iteration unwinds back to the dispatch loop below, so the Java stack
+     * does not grow with the number of iterations.
+     */
+    public void bounce() {
+        pending = true;
+        if (running) {
+            return;
+        }
+
+        running = true;
+        try {
+            while (pending) {
+                pending = false;
+                iteration.accept(this);
+            }
+        } finally {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,3 @@
+public interface UnitContinuation {
+    void accept();
+}
\ No newline at end of file